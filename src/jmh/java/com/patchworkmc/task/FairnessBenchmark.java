@@ -0,0 +1,86 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Setup;
+
+import com.patchworkmc.logging.Logger;
+
+/**
+ * Measures how long a single step task waits while the runners are kept busy by multi step
+ * tasks requeueing themselves after every step. A fair scheduler keeps this close to the
+ * duration of a few steps, no matter how many multi step tasks are running.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FairnessBenchmark extends SchedulerBenchmark {
+	/**
+	 * Task stepping until the scheduler shuts down, busy for a while during every step.
+	 */
+	static class BackgroundTask extends Task {
+		private final long stepNanos;
+
+		BackgroundTask(long stepNanos) {
+			this.stepNanos = stepNanos;
+		}
+
+		@Override
+		protected boolean run(Logger logger) {
+			long end = System.nanoTime() + stepNanos;
+
+			while (System.nanoTime() < end) {
+				// Simulate work without giving up the runner
+			}
+
+			return getScheduler().isShuttingDown();
+		}
+
+		@Override
+		public String name() {
+			return "Background";
+		}
+	}
+
+	@Param({"16", "256"})
+	public int backgroundTasks;
+
+	@Param({"10000"})
+	public long stepNanos;
+
+	@Setup(Level.Trial)
+	public void startBackground() {
+		for (int i = 0; i < backgroundTasks; i++) {
+			scheduler.schedule(new BackgroundTask(stepNanos), (TaskTracker) null);
+		}
+	}
+
+	@Benchmark
+	public Object probe() {
+		return scheduler.schedule(new EmptyTask()).arm().toCompletableFuture().join();
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Measures how long it takes until a single tracker tracking a large amount of tasks completes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FanInBenchmark extends SchedulerBenchmark {
+	@Param({"1000", "100000"})
+	public int tasks;
+
+	@Benchmark
+	public Object fanIn() {
+		TaskTracker tracker = new TaskTracker(scheduler);
+
+		for (int i = 0; i < tasks; i++) {
+			scheduler.schedule(new EmptyTask(), tracker);
+		}
+
+		return tracker.arm().toCompletableFuture().join();
+	}
+}
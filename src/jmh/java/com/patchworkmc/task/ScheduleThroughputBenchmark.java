@@ -0,0 +1,64 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+/**
+ * Measures how many empty tasks the scheduler gets through per second, when they are
+ * scheduled in batches from outside of the runners.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ScheduleThroughputBenchmark extends SchedulerBenchmark {
+	private static final int BATCH = 1000;
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void schedule() {
+		TaskTracker tracker = new TaskTracker(scheduler);
+
+		for (int i = 0; i < BATCH; i++) {
+			scheduler.schedule(new EmptyTask(), tracker);
+		}
+
+		tracker.arm().toCompletableFuture().join();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public void scheduleAll() {
+		List<Task> tasks = new ArrayList<>(BATCH);
+
+		for (int i = 0; i < BATCH; i++) {
+			tasks.add(new EmptyTask());
+		}
+
+		scheduler.scheduleAll(tasks).arm().toCompletableFuture().join();
+	}
+}
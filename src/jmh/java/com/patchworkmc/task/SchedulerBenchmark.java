@@ -0,0 +1,92 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.patchworkmc.logging.Logger;
+
+/**
+ * Base class for benchmarks running against a {@link TaskScheduler}. Starts a scheduler
+ * per trial, parameterised by runner count and queue mode.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public abstract class SchedulerBenchmark {
+	/**
+	 * Task which does nothing, so only the scheduling overhead is measured.
+	 */
+	static class EmptyTask extends Task {
+		@Override
+		protected boolean run(Logger logger) {
+			return true;
+		}
+
+		@Override
+		public String name() {
+			return "Empty";
+		}
+	}
+
+	@Param({"1", "2", "4", "8"})
+	public int runners;
+
+	@Param({"SHARED", "WORK_STEALING", "PRIORITY", "RING_BUFFER"})
+	public TaskScheduler.QueueMode queueMode;
+
+	// Only applies to RING_BUFFER, compare strategies with e.g. -p waitStrategy=BLOCKING,BUSY_SPIN
+	@Param({"BLOCKING"})
+	public TaskScheduler.WaitStrategy waitStrategy;
+
+	protected TaskScheduler scheduler;
+
+	@Setup(Level.Trial)
+	public void startScheduler() {
+		// The logger has no writers, so nothing is printed while measuring
+		scheduler = new TaskScheduler(new Logger("Benchmark"), runners).queueMode(queueMode);
+
+		if (queueMode == TaskScheduler.QueueMode.RING_BUFFER) {
+			scheduler.ringBuffer(TaskScheduler.DEFAULT_RING_BUFFER_SIZE, waitStrategy);
+		}
+
+		scheduler.start();
+	}
+
+	@TearDown(Level.Trial)
+	public void stopScheduler() throws InterruptedException {
+		scheduler.shutdown();
+
+		if (!scheduler.awaitShutdown(10, TimeUnit.SECONDS)) {
+			scheduler.forceShutdown();
+		}
+	}
+}
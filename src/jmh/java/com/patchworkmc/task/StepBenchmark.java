@@ -0,0 +1,114 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.patchworkmc.logging.Logger;
+
+/**
+ * Measures the cost of stepping multi step tasks. Meant to be run with the GC profiler, e.g.
+ * {@code -PjmhInclude=Step -PjmhProfilers=gc}, where {@code gc.alloc.rate.norm} should stay
+ * close to 0 bytes per step in {@link StepBenchmark#step()} and per step of the task in
+ * {@link StepBenchmark#multiStepTask()} once the task itself has been accounted for.
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StepBenchmark {
+	/**
+	 * Task which does nothing for a fixed amount of steps.
+	 */
+	static class CountingTask extends Task {
+		private final int stepCount;
+		private int stepped;
+
+		CountingTask(int stepCount) {
+			this.stepCount = stepCount;
+		}
+
+		@Override
+		protected boolean run(Logger logger) {
+			return ++stepped >= stepCount;
+		}
+
+		@Override
+		public String name() {
+			return "Counting";
+		}
+	}
+
+	@Param({"1000"})
+	public int steps;
+
+	private TaskScheduler scheduler;
+	private Logger logger;
+	private Task endless;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		// Stepping directly does not need the scheduler to run
+		logger = new Logger("Benchmark");
+		scheduler = new TaskScheduler(logger, 1);
+		endless = new CountingTask(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Steps a task which never finishes on the benchmark thread, so only the step itself is measured.
+	 */
+	@Benchmark
+	public Task step() throws Throwable {
+		endless.step(scheduler, logger);
+		return endless;
+	}
+
+	/**
+	 * Steps a tracked task until it is done, which includes notifying the tracker.
+	 */
+	@Benchmark
+	public Object multiStepTask() throws Throwable {
+		CountingTask task = new CountingTask(steps);
+		TaskTracker tracker = new TaskTracker(scheduler);
+		tracker.track(task);
+		tracker.arm();
+
+		while (!task.isDone()) {
+			task.step(scheduler, logger);
+		}
+
+		return tracker;
+	}
+}
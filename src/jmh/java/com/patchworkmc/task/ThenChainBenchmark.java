@@ -0,0 +1,57 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * Measures how long a chain of empty continuations takes to run, once its first tracker completed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ThenChainBenchmark extends SchedulerBenchmark {
+	@Param({"1", "10", "100"})
+	public int depth;
+
+	@Param({"SCHEDULED", "INLINE"})
+	public TaskTracker.ContinuationMode continuationMode;
+
+	@Benchmark
+	public Object chain() {
+		TaskTracker root = new TaskTracker(scheduler).continuationMode(continuationMode);
+		TaskTracker last = root;
+
+		for (int i = 0; i < depth; i++) {
+			last = last.then(() -> { });
+		}
+
+		// Complete the root on a runner, so the chain runs there
+		scheduler.schedule(new EmptyTask(), root);
+		root.arm();
+
+		return last.toCompletableFuture().join();
+	}
+}
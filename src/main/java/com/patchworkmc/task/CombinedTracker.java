@@ -0,0 +1,199 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link ValueTracker} completing as soon as enough of its tasks succeeded or too many of
+ * them failed, see {@link TaskTracker#allOf(TaskScheduler, Collection)},
+ * {@link TaskTracker#anyOf(TaskScheduler, Collection)},
+ * {@link TaskTracker#firstSuccessful(TaskScheduler, Collection)} and
+ * {@link TaskTracker#atLeast(TaskScheduler, int, Collection)}. Once the outcome is decided,
+ * the tasks which have not finished yet are cancelled and interrupted. The value of the
+ * tracker is the task which decided the outcome, if it succeeded.
+ *
+ * @param <T> The type of the combined tasks
+ */
+class CombinedTracker<T extends Task> extends ValueTracker<T> {
+	/**
+	 * Amount of required successes meaning all tasks have to succeed.
+	 */
+	static final int ALL = -1;
+
+	// Outcomes needed to decide, the tracker succeeds with the required-th success and
+	// fails with the first failure exceeding the tolerated ones
+	private final int required;
+	private final int tolerated;
+
+	private final List<T> tasks;
+	private final AtomicInteger successes;
+	private final AtomicInteger failures;
+	private final AtomicReference<Throwable> firstError;
+	private final AtomicBoolean decided;
+
+	/**
+	 * Creates a new {@link CombinedTracker}, the tasks have to be scheduled separately.
+	 *
+	 * @param scheduler The scheduler the tasks are from
+	 * @param tasks     The tasks to combine, duplicates are ignored
+	 * @param required  The amount of tasks which have to succeed or {@link CombinedTracker#ALL}
+	 * @param failFast  Whether the first failure fails the tracker, otherwise it only fails
+	 *                  once the required amount can't be reached anymore
+	 * @throws IllegalArgumentException If more tasks are required than given
+	 */
+	CombinedTracker(TaskScheduler scheduler, Collection<? extends T> tasks, int required, boolean failFast) {
+		super(scheduler, null);
+
+		Set<T> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+		this.tasks = new ArrayList<>(tasks.size());
+
+		for (T task : tasks) {
+			if (distinct.add(task)) {
+				this.tasks.add(task);
+			}
+		}
+
+		if (required == ALL) {
+			required = this.tasks.size();
+		}
+
+		if (required < 0 || required > this.tasks.size()) {
+			throw new IllegalArgumentException("Can't require " + required + " of " + this.tasks.size() + " tasks to succeed");
+		}
+
+		this.required = required;
+		this.tolerated = failFast ? 0 : this.tasks.size() - required;
+		this.successes = new AtomicInteger();
+		this.failures = new AtomicInteger();
+		this.firstError = new AtomicReference<>();
+		this.decided = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Starts tracking the tasks and arms the tracker. Tasks which have finished already are
+	 * counted right away.
+	 *
+	 * @return this
+	 */
+	CombinedTracker<T> start() {
+		// Released once the outcome is decided
+		reserve();
+
+		if (required == 0) {
+			decide(null, null);
+		}
+
+		for (T task : tasks) {
+			if (decided.get()) {
+				// The remaining tasks have been cancelled
+				break;
+			}
+
+			if (task.nowTrackedBy(this)) {
+				remember(task, true);
+			} else {
+				report(task, task.isCanceled() ? cancellation(task) : task.getError());
+			}
+		}
+
+		arm();
+		return this;
+	}
+
+	@Override
+	void taskFinished(Task task, Throwable error) {
+		// Cancelled tasks inform their trackers as if they were done
+		if (error == null && task.isCanceled()) {
+			error = cancellation(task);
+		}
+
+		report(task, error);
+	}
+
+	/**
+	 * Retrieves the error a cancelled task counts as failed with. Tasks aborted with an
+	 * error, like those whose deadline passed, keep it.
+	 *
+	 * @param task The cancelled task
+	 * @return The error the task has been aborted with or a {@link CancellationException}
+	 */
+	private static Throwable cancellation(Task task) {
+		Throwable error = task.getError();
+		return error != null ? error : new CancellationException("Task has been cancelled");
+	}
+
+	/**
+	 * Counts the outcome of a task and decides the outcome of the tracker, if possible.
+	 * Outcomes reported after the decision, like those of the cancelled tasks, are ignored.
+	 *
+	 * @param task  The task which finished
+	 * @param error The error the task failed with or null, if it succeeded
+	 */
+	@SuppressWarnings("unchecked")
+	private void report(Task task, Throwable error) {
+		if (decided.get()) {
+			return;
+		}
+
+		if (error == null) {
+			if (successes.incrementAndGet() == required) {
+				decide((T) task, null);
+			}
+		} else {
+			firstError.compareAndSet(null, error);
+
+			if (failures.incrementAndGet() == tolerated + 1) {
+				decide(null, firstError.get());
+			}
+		}
+	}
+
+	/**
+	 * Completes the tracker without waiting for the remaining tasks and cancels them.
+	 *
+	 * @param winner The task which decided the outcome or null, if the tracker failed
+	 * @param error  The error to fail the tracker with or null, if it succeeded
+	 */
+	private void decide(T winner, Throwable error) {
+		if (!decided.compareAndSet(false, true)) {
+			return;
+		}
+
+		// Stop the losers first, so they free their runners as soon as possible. They fail,
+		// so other trackers of them don't mistake them for having succeeded
+		for (T task : tasks) {
+			if (task != winner && !task.isFinished()) {
+				task.abort(new CancellationException("Outcome has been decided without task " + task.name()), true);
+			}
+		}
+
+		complete(winner, error);
+	}
+}
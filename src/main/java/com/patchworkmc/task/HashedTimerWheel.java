@@ -0,0 +1,355 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.patchworkmc.logging.LogLevel;
+import com.patchworkmc.logging.Logger;
+
+/**
+ * Hashed timer wheel with O(1) insertion and cancellation. Timers are hashed into buckets by
+ * their deadline, a single thread advances the wheel over the buckets of the ticks which passed
+ * and fires all timers of them which are due. The buckets are only ever touched by that thread,
+ * other threads hand new and cancelled timers over through lock free queues.
+ * <p>
+ * Timers fire with a precision of one tick, their actions run on the wheel thread and should
+ * only hand work over to somewhere else. The thread parks until the tick of the earliest
+ * deadline instead of waking up every tick, and completely while no timer is pending.
+ * </p>
+ */
+class HashedTimerWheel {
+	// Upper bound of timers moved into the buckets per tick, so a burst of new
+	// timers can't delay the current tick for too long
+	private static final int MAX_TRANSFERS_PER_TICK = 100000;
+
+	private final Logger logger;
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+
+	private final Queue<Timeout> added;
+	private final Queue<Timeout> cancelled;
+	private final AtomicLong pending;
+
+	private final Thread thread;
+	private final long startTime;
+	private volatile boolean stopped;
+
+	// Next tick whose bucket has not been visited yet, only accessed by the wheel thread
+	private long tick;
+
+	// Time the wheel thread is parked until relative to the start time, Long.MIN_VALUE while
+	// it is awake and Long.MAX_VALUE while it is parked without a deadline
+	private volatile long wakeup;
+
+	/**
+	 * Creates a new {@link HashedTimerWheel} and starts its thread.
+	 *
+	 * @param logger     The logger to report failing timer actions with
+	 * @param threadName The name of the thread advancing the wheel
+	 * @param tickNanos  The duration of one tick in nanoseconds
+	 * @param wheelSize  The amount of buckets, will be rounded up to a power of two
+	 */
+	HashedTimerWheel(Logger logger, String threadName, long tickNanos, int wheelSize) {
+		this.logger = logger;
+		this.tickNanos = tickNanos;
+
+		int size = Integer.highestOneBit(Math.max(wheelSize, 2) - 1) << 1;
+		this.wheel = new Bucket[size];
+
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+
+		this.mask = size - 1;
+		this.added = new ConcurrentLinkedQueue<>();
+		this.cancelled = new ConcurrentLinkedQueue<>();
+		this.pending = new AtomicLong();
+		this.wakeup = Long.MIN_VALUE;
+
+		this.startTime = System.nanoTime();
+		this.thread = new Thread(this::run, threadName);
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/**
+	 * Adds a new timer.
+	 *
+	 * @param action     The action to run on the wheel thread once the timer fires
+	 * @param delayNanos The delay after which the timer fires in nanoseconds
+	 * @return The handle of the new timer
+	 */
+	TimerHandle schedule(Runnable action, long delayNanos) {
+		Timeout timeout = new Timeout(action, System.nanoTime() - startTime + Math.max(0, delayNanos));
+		pending.incrementAndGet();
+		added.add(timeout);
+
+		if (timeout.deadline < wakeup) {
+			// The thread is parked until after the new timer is due
+			LockSupport.unpark(thread);
+		}
+
+		return timeout;
+	}
+
+	/**
+	 * Retrieves the amount of timers which have neither fired nor been removed after cancellation.
+	 *
+	 * @return The amount of pending timers
+	 */
+	long pending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stops the wheel thread, pending timers will never fire.
+	 */
+	void stop() {
+		stopped = true;
+		LockSupport.unpark(thread);
+	}
+
+	// Main loop of the wheel thread
+	private void run() {
+		while (!stopped) {
+			removeCancelled();
+			transferAdded();
+
+			long now = System.nanoTime() - startTime;
+			long current = now / tickNanos;
+
+			// Visit the buckets of all ticks passed since the last visit, but every bucket only
+			// once, timers of later rounds stay in their bucket until their deadline passed
+			long last = Math.min(current, tick + mask);
+
+			for (long visited = tick; visited <= last; visited++) {
+				wheel[(int) (visited & mask)].expire(now);
+			}
+
+			tick = Math.max(tick, current + 1);
+			awaitNextDeadline();
+		}
+	}
+
+	/**
+	 * Parks the wheel thread until the tick of the earliest deadline in the wheel has passed,
+	 * a timer with an earlier deadline is added or the wheel is stopped.
+	 */
+	private void awaitNextDeadline() {
+		long earliest = nextDeadline();
+		long until = earliest == Long.MAX_VALUE ? Long.MAX_VALUE : (earliest / tickNanos + 1) * tickNanos;
+
+		// Publish the wakeup before checking for new timers, so either this thread sees
+		// them or the thread adding them sees that it has to unpark this one
+		wakeup = until;
+
+		if (added.isEmpty() && !stopped) {
+			if (until == Long.MAX_VALUE) {
+				LockSupport.park(this);
+			} else {
+				long remaining = until - (System.nanoTime() - startTime);
+
+				if (remaining > 0) {
+					LockSupport.parkNanos(this, remaining);
+				}
+			}
+		}
+
+		wakeup = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Searches the earliest deadline of the timers in the wheel. Buckets are searched in the
+	 * order they are visited in. Timers of a bucket are not due before the tick of that bucket,
+	 * so the search usually stops after the first occupied one.
+	 *
+	 * @return The earliest deadline relative to the start time or Long.MAX_VALUE, if the
+	 * wheel is empty
+	 */
+	private long nextDeadline() {
+		long earliest = Long.MAX_VALUE;
+
+		for (int i = 0; i < wheel.length; i++) {
+			long visited = tick + i;
+
+			if (earliest < visited * tickNanos) {
+				// No timer of this or any later bucket can be due earlier
+				break;
+			}
+
+			for (Timeout timeout = wheel[(int) (visited & mask)].head; timeout != null; timeout = timeout.next) {
+				earliest = Math.min(earliest, timeout.deadline);
+			}
+		}
+
+		return earliest;
+	}
+
+	// Moves newly added timers into their buckets
+	private void transferAdded() {
+		for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+			Timeout timeout = added.poll();
+
+			if (timeout == null) {
+				return;
+			}
+
+			if (timeout.state.get() == Timeout.CANCELLED) {
+				// Cancelled before it even made it into the wheel, removeCancelled
+				// takes care of the pending count
+				continue;
+			}
+
+			// Timers which are due already go into the bucket visited next
+			long ticks = Math.max(timeout.deadline / tickNanos, tick);
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+
+	// Removes cancelled timers from their buckets
+	private void removeCancelled() {
+		Timeout timeout;
+
+		while ((timeout = cancelled.poll()) != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+
+			pending.decrementAndGet();
+		}
+	}
+
+	/**
+	 * A single timer.
+	 */
+	private final class Timeout implements TimerHandle {
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable action;
+		private final long deadline;
+		private final AtomicInteger state;
+
+		// Only accessed by the wheel thread
+		private Bucket bucket;
+		private Timeout previous;
+		private Timeout next;
+
+		Timeout(Runnable action, long deadline) {
+			this.action = action;
+			this.deadline = deadline;
+			this.state = new AtomicInteger(WAITING);
+		}
+
+		@Override
+		public boolean cancel() {
+			if (!state.compareAndSet(WAITING, CANCELLED)) {
+				return false;
+			}
+
+			// Let the wheel thread unlink it from its bucket
+			cancelled.add(this);
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		// Fires the timer, if it has not been cancelled
+		private void expire() {
+			if (!state.compareAndSet(WAITING, EXPIRED)) {
+				// Cancelled timers are accounted for by removeCancelled
+				return;
+			}
+
+			pending.decrementAndGet();
+
+			try {
+				action.run();
+			} catch (Throwable t) {
+				logger.error("Timer action failed!");
+				logger.thrown(LogLevel.ERROR, t);
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of the timers hashed into one slot of the wheel.
+	 */
+	private final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		private void add(Timeout timeout) {
+			timeout.bucket = this;
+
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.previous = tail;
+				tail = timeout;
+			}
+		}
+
+		// Fires all timers of this bucket which are due at the specified time
+		private void expire(long now) {
+			Timeout timeout = head;
+
+			while (timeout != null) {
+				Timeout next = timeout.next;
+
+				if (timeout.deadline <= now) {
+					remove(timeout);
+					timeout.expire();
+				}
+
+				timeout = next;
+			}
+		}
+
+		private void remove(Timeout timeout) {
+			if (timeout.previous != null) {
+				timeout.previous.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+
+			if (timeout.next != null) {
+				timeout.next.previous = timeout.previous;
+			} else {
+				tail = timeout.previous;
+			}
+
+			timeout.previous = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+	}
+}
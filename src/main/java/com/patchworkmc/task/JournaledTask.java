@@ -0,0 +1,42 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+/**
+ * Task which can be recorded in a {@link TaskJournal}, so it can be recreated after a restart.
+ * Only tasks implementing this interface are journaled.
+ */
+public interface JournaledTask {
+	/**
+	 * Retrieves the id of the task. It has to identify the work the task does across restarts,
+	 * so a task recreated for the same work has to yield the same id.
+	 *
+	 * @return The stable id of the task
+	 */
+	String journalId();
+
+	/**
+	 * Retrieves the data required to recreate the task, see
+	 * {@link TaskJournal#replay(TaskScheduler, com.patchworkmc.function.ThrowingFunction)}.
+	 *
+	 * @return The serialized form of the task
+	 */
+	byte[] journalData();
+}
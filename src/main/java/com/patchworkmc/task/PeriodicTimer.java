@@ -0,0 +1,111 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.patchworkmc.function.ThrowingRunnable;
+
+/**
+ * Timer scheduling a new task for an operation at a fixed rate, see
+ * {@link TaskScheduler#scheduleAtFixedRate(String, ThrowingRunnable, long, long, java.util.concurrent.TimeUnit)}.
+ */
+class PeriodicTimer implements TimerHandle {
+	private final TaskScheduler scheduler;
+	private final String name;
+	private final ThrowingRunnable<Throwable> runnable;
+	private final long periodNanos;
+
+	private final AtomicBoolean cancelled;
+	private volatile TimerHandle next;
+
+	// Only accessed by the timer thread
+	private long firstRun;
+	private long runs;
+	private Task current;
+
+	/**
+	 * Creates a new {@link PeriodicTimer}.
+	 *
+	 * @param scheduler   The scheduler to run the operation on
+	 * @param name        The name of the tasks running the operation
+	 * @param runnable    The operation to run
+	 * @param periodNanos The time between the starts of two runs in nanoseconds
+	 */
+	PeriodicTimer(TaskScheduler scheduler, String name, ThrowingRunnable<Throwable> runnable, long periodNanos) {
+		this.scheduler = scheduler;
+		this.name = name;
+		this.runnable = runnable;
+		this.periodNanos = periodNanos;
+		this.cancelled = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Starts the timer.
+	 *
+	 * @param initialDelayNanos The delay before the first run in nanoseconds
+	 */
+	void start(long initialDelayNanos) {
+		firstRun = System.nanoTime() + initialDelayNanos;
+		next = scheduler.timer().schedule(this::fire, initialDelayNanos);
+	}
+
+	// Called on the timer thread every period
+	private void fire() {
+		if (cancelled.get() || scheduler.isShuttingDown()) {
+			return;
+		}
+
+		if (current == null || current.isDone()) {
+			// Don't pile up runs if the operation takes longer than the period
+			current = new UniversalRunnableTask(name, runnable);
+			scheduler.scheduleUnbounded(current, null);
+		}
+
+		// Calculate from the first run so the timer does not drift
+		runs++;
+		next = scheduler.timer().schedule(this::fire, firstRun + runs * periodNanos - System.nanoTime());
+
+		if (cancelled.get()) {
+			// Cancelled while we were rescheduling
+			next.cancel();
+		}
+	}
+
+	@Override
+	public boolean cancel() {
+		if (!cancelled.compareAndSet(false, true)) {
+			return false;
+		}
+
+		TimerHandle next = this.next;
+
+		if (next != null) {
+			next.cancel();
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled.get();
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TaskQueue} keeping one FIFO queue per {@link TaskPriority}. Higher classes are
+ * always preferred, except for every {@link PriorityTaskQueue#AGING_INTERVAL}th task taken,
+ * which goes to the lowest class whose oldest task has waited longer than its aging
+ * threshold. This keeps the latency of high priority tasks bounded while guaranteeing
+ * lower classes a share of the runners.
+ */
+class PriorityTaskQueue extends TaskQueue {
+	// Every how many takes aged tasks are given a chance
+	private static final int AGING_INTERVAL = 8;
+	private static final TaskPriority[] PRIORITIES = TaskPriority.values();
+
+	// Indexed by TaskPriority ordinal, highest priority first
+	private final TaskList[] tasks;
+	private final Object lock;
+	private int size;
+	private int takes;
+
+	// Amount of runners waiting on the lock, guarded by the lock
+	private int waiting;
+
+	/**
+	 * Creates a new {@link PriorityTaskQueue}.
+	 *
+	 * @param scheduler The scheduler owning this queue
+	 */
+	PriorityTaskQueue(TaskScheduler scheduler) {
+		super(scheduler);
+		this.tasks = new TaskList[PRIORITIES.length];
+
+		for (int i = 0; i < tasks.length; i++) {
+			tasks[i] = new TaskList(this);
+		}
+
+		this.lock = new Object();
+	}
+
+	@Override
+	void push(Task task, int runnerIndex) {
+		TaskPriority priority = task.priority();
+
+		synchronized (lock) {
+			enqueue(task, priority);
+			lock.notify();
+		}
+	}
+
+	@Override
+	void pushAll(List<Task> tasks, int runnerIndex) {
+		synchronized (lock) {
+			for (Task task : tasks) {
+				enqueue(task, task.priority());
+			}
+
+			// Wake at most one waiting runner per task
+			for (int i = Math.min(tasks.size(), waiting); i > 0; i--) {
+				lock.notify();
+			}
+		}
+	}
+
+	@Override
+	void requeue(Task task, int runnerIndex) {
+		TaskPriority priority = task.priority();
+
+		// Requeued tasks start aging again, so multi step tasks of the
+		// same class take turns
+		synchronized (lock) {
+			enqueue(task, priority);
+		}
+	}
+
+	@Override
+	Task take(int runnerIndex, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+
+		synchronized (lock) {
+			while (size == 0) {
+				if (scheduler.mayTerminate()) {
+					// Nothing left to do and we are shutting down
+					return null;
+				}
+
+				// No task found, so wait on the lock
+				// if a new task gets scheduled, the lock gets notified
+				long remaining = deadline - System.nanoTime();
+
+				if (timeoutNanos >= 0 && remaining <= 0) {
+					return null;
+				}
+
+				waiting++;
+
+				try {
+					if (timeoutNanos < 0) {
+						lock.wait();
+					} else {
+						TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+					}
+				} finally {
+					waiting--;
+				}
+			}
+
+			size--;
+
+			if (++takes % AGING_INTERVAL == 0) {
+				Task aged = pollAged();
+
+				if (aged != null) {
+					return aged;
+				}
+			}
+
+			for (TaskList queue : tasks) {
+				if (!queue.isEmpty()) {
+					return queue.poll();
+				}
+			}
+
+			throw new AssertionError("UNREACHABLE");
+		}
+	}
+
+	@Override
+	boolean isEmpty() {
+		synchronized (lock) {
+			return size == 0;
+		}
+	}
+
+	@Override
+	boolean remove(Task task) {
+		synchronized (lock) {
+			// The task is in the list of the class it had when it was queued
+			for (TaskList queue : tasks) {
+				if (queue.remove(task)) {
+					size--;
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	@Override
+	Task pollOldestHoldingSlot() {
+		synchronized (lock) {
+			// The lowest class is the one which can be spared the most
+			for (int i = tasks.length - 1; i >= 0; i--) {
+				Task task = tasks[i].pollHoldingSlot();
+
+				if (task != null) {
+					size--;
+					return task;
+				}
+			}
+
+			return null;
+		}
+	}
+
+	@Override
+	List<Task> drain() {
+		synchronized (lock) {
+			List<Task> drained = new ArrayList<>(size);
+
+			for (TaskList queue : tasks) {
+				queue.drainTo(drained);
+			}
+
+			size = 0;
+			return drained;
+		}
+	}
+
+	@Override
+	void wakeAll() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	// Appends a task to the queue of its class, must hold the lock
+	private void enqueue(Task task, TaskPriority priority) {
+		task.enqueuedAt = System.nanoTime();
+		tasks[priority.ordinal()].add(task);
+		size++;
+	}
+
+	// Polls the oldest task of the lowest class which has aged, must hold the lock
+	private Task pollAged() {
+		long now = System.nanoTime();
+
+		for (int i = tasks.length - 1; i > 0; i--) {
+			Task head = tasks[i].peek();
+
+			if (head != null && now - head.enqueuedAt > PRIORITIES[i].agingNanos()) {
+				return tasks[i].poll();
+			}
+		}
+
+		return null;
+	}
+}
@@ -0,0 +1,344 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link TaskQueue} backed by a preallocated multi-producer, multi-consumer ring buffer. Handing
+ * a task over takes a CAS on each side and no lock, idle runners wait according to the
+ * {@link TaskScheduler.WaitStrategy} of the scheduler. If the ring is full, tasks go to an
+ * unbounded overflow queue until the ring has been drained, so producers never block and tasks
+ * keep their order.
+ */
+class RingBufferTaskQueue extends TaskQueue {
+	// Attempts to find a task before yielding and before sleeping
+	private static final int SPIN_TRIES = 100;
+	private static final int YIELD_TRIES = 100;
+
+	// Time a sleeping runner parks for, the OS usually rounds this up considerably
+	private static final long SLEEP_NANOS = 100;
+
+	private final TaskScheduler.WaitStrategy strategy;
+	private final int mask;
+
+	// Slot i holds a task once its sequence is one ahead of the position writing it
+	private final AtomicReferenceArray<Task> slots;
+	private final AtomicLongArray sequences;
+	private final AtomicLong head;
+	private final AtomicLong tail;
+	private final ConcurrentLinkedQueue<Task> overflow;
+
+	// Only used by the blocking strategy
+	private final Object lock;
+	private final AtomicInteger waiters;
+
+	/**
+	 * Creates a new {@link RingBufferTaskQueue}.
+	 *
+	 * @param scheduler The scheduler owning this queue
+	 * @param size      The amount of slots of the ring, rounded up to the next power of two
+	 * @param strategy  How runners wait for tasks
+	 */
+	RingBufferTaskQueue(TaskScheduler scheduler, int size, TaskScheduler.WaitStrategy strategy) {
+		super(scheduler);
+
+		int slotCount = Integer.highestOneBit(size);
+
+		if (slotCount < size) {
+			slotCount <<= 1;
+		}
+
+		this.strategy = strategy;
+		this.mask = slotCount - 1;
+		this.slots = new AtomicReferenceArray<>(slotCount);
+		this.sequences = new AtomicLongArray(slotCount);
+		this.head = new AtomicLong();
+		this.tail = new AtomicLong();
+		this.overflow = new ConcurrentLinkedQueue<>();
+		this.lock = new Object();
+		this.waiters = new AtomicInteger();
+
+		for (int i = 0; i < slotCount; i++) {
+			sequences.set(i, i);
+		}
+	}
+
+	@Override
+	void push(Task task, int runnerIndex) {
+		add(task);
+
+		if (strategy == TaskScheduler.WaitStrategy.BLOCKING && waiters.get() > 0) {
+			// Only take the lock if someone is actually waiting on it
+			synchronized (lock) {
+				lock.notify();
+			}
+		}
+	}
+
+	@Override
+	void pushAll(List<Task> tasks, int runnerIndex) {
+		for (Task task : tasks) {
+			add(task);
+		}
+
+		if (strategy == TaskScheduler.WaitStrategy.BLOCKING && waiters.get() > 0) {
+			synchronized (lock) {
+				// Wake at most one waiting runner per task
+				for (int i = Math.min(tasks.size(), waiters.get()); i > 0; i--) {
+					lock.notify();
+				}
+			}
+		}
+	}
+
+	@Override
+	void requeue(Task task, int runnerIndex) {
+		// The runner requeueing the task will come back for more work
+		// anyway, so there is no need to wake anyone up
+		add(task);
+	}
+
+	// Appends a task, to the overflow queue if the ring is full or still has overflowed tasks
+	private void add(Task task) {
+		if (!overflow.isEmpty() || !offer(task)) {
+			overflow.add(task);
+		}
+	}
+
+	// Tries to put a task into the ring, fails if it is full
+	private boolean offer(Task task) {
+		long position = tail.get();
+
+		while (true) {
+			int slot = (int) position & mask;
+			long difference = sequences.get(slot) - position;
+
+			if (difference == 0) {
+				if (tail.compareAndSet(position, position + 1)) {
+					slots.lazySet(slot, task);
+
+					// Full write, so a blocking runner checking after registering as
+					// a waiter either sees the task or is seen by the producer
+					sequences.set(slot, position + 1);
+					return true;
+				}
+			} else if (difference < 0) {
+				// The slot still holds a task from the previous round
+				return false;
+			}
+
+			position = tail.get();
+		}
+	}
+
+	// Takes the next task, from the overflow queue once the ring is empty
+	private Task poll() {
+		long position = head.get();
+
+		while (true) {
+			int slot = (int) position & mask;
+			long difference = sequences.get(slot) - (position + 1);
+
+			if (difference == 0) {
+				if (head.compareAndSet(position, position + 1)) {
+					Task task = slots.get(slot);
+					slots.lazySet(slot, null);
+
+					// Hand the slot to the producer of the next round
+					sequences.lazySet(slot, position + mask + 1);
+					return task;
+				}
+			} else if (difference < 0) {
+				// Nothing has been published to this slot yet
+				return overflow.poll();
+			}
+
+			position = head.get();
+		}
+	}
+
+	@Override
+	Task take(int runnerIndex, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		int tries = 0;
+
+		while (true) {
+			Task task = poll();
+
+			if (task != null) {
+				return task;
+			}
+
+			if (scheduler.mayTerminate()) {
+				// Nothing left to do and we are shutting down
+				return null;
+			}
+
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+
+			if (timeoutNanos >= 0 && deadline - System.nanoTime() <= 0) {
+				return null;
+			}
+
+			switch (strategy) {
+			case BLOCKING:
+				task = await(deadline, timeoutNanos >= 0);
+
+				if (task != null) {
+					return task;
+				}
+
+				break;
+
+			case SLEEPING:
+				if (tries < SPIN_TRIES + YIELD_TRIES) {
+					if (++tries > SPIN_TRIES) {
+						Thread.yield();
+					}
+				} else {
+					LockSupport.parkNanos(this, SLEEP_NANOS);
+				}
+
+				break;
+
+			case YIELDING:
+				if (tries < SPIN_TRIES) {
+					tries++;
+				} else {
+					Thread.yield();
+				}
+
+				break;
+
+			case BUSY_SPIN:
+				// Burn the core, the next task is picked up as soon as it is published
+				break;
+
+			default:
+				throw new AssertionError("UNREACHABLE");
+			}
+		}
+	}
+
+	// Waits on the lock until a producer notifies it, registered as a waiter so producers
+	// know they have to notify
+	private Task await(long deadline, boolean timed) throws InterruptedException {
+		synchronized (lock) {
+			waiters.incrementAndGet();
+
+			try {
+				// A task published before we registered would not notify us
+				Task task = poll();
+
+				if (task != null || scheduler.mayTerminate()) {
+					return task;
+				}
+
+				if (!timed) {
+					lock.wait();
+				} else {
+					long remaining = deadline - System.nanoTime();
+
+					if (remaining > 0) {
+						TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+					}
+				}
+
+				return null;
+			} finally {
+				waiters.decrementAndGet();
+			}
+		}
+	}
+
+	@Override
+	boolean isEmpty() {
+		return head.get() >= tail.get() && overflow.isEmpty();
+	}
+
+	@Override
+	Task pollOldestHoldingSlot() {
+		long position = head.get();
+
+		while (true) {
+			int slot = (int) position & mask;
+			long difference = sequences.get(slot) - (position + 1);
+
+			if (difference == 0) {
+				Task task = slots.get(slot);
+
+				if (task == null || head.get() != position) {
+					// Another consumer took the slot in between, start over at the new head
+					position = head.get();
+					continue;
+				}
+
+				if (!task.holdsSlot) {
+					// The front of the ring can't be skipped
+					break;
+				}
+
+				if (head.compareAndSet(position, position + 1)) {
+					slots.lazySet(slot, null);
+					sequences.lazySet(slot, position + mask + 1);
+					return task;
+				}
+			} else if (difference < 0) {
+				// The ring is empty
+				break;
+			}
+
+			position = head.get();
+		}
+
+		return removeHoldingSlot(overflow);
+	}
+
+	@Override
+	List<Task> drain() {
+		List<Task> drained = new ArrayList<>();
+		Task task;
+
+		while ((task = poll()) != null) {
+			drained.add(task);
+		}
+
+		return drained;
+	}
+
+	@Override
+	void wakeAll() {
+		// Spinning and sleeping runners notice the shutdown on their own
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TaskQueue} sharing a single FIFO queue guarded by one lock between all runners.
+ */
+class SharedTaskQueue extends TaskQueue {
+	private final TaskList tasks;
+	private final Object lock;
+
+	// Amount of runners waiting on the lock, guarded by the lock
+	private int waiting;
+
+	/**
+	 * Creates a new {@link SharedTaskQueue}.
+	 *
+	 * @param scheduler The scheduler owning this queue
+	 */
+	SharedTaskQueue(TaskScheduler scheduler) {
+		super(scheduler);
+		this.tasks = new TaskList(this);
+		this.lock = new Object();
+	}
+
+	@Override
+	void push(Task task, int runnerIndex) {
+		synchronized (lock) {
+			tasks.add(task);
+
+			// One new task only needs one runner, waking up all of
+			// them would just make them fight over the lock
+			lock.notify();
+		}
+	}
+
+	@Override
+	void pushAll(List<Task> tasks, int runnerIndex) {
+		synchronized (lock) {
+			for (Task task : tasks) {
+				this.tasks.add(task);
+			}
+
+			// Every runner takes one task at a time, so waking more than one per task
+			// or more than are waiting would only make them fight over the lock
+			for (int i = Math.min(tasks.size(), waiting); i > 0; i--) {
+				lock.notify();
+			}
+		}
+	}
+
+	@Override
+	void requeue(Task task, int runnerIndex) {
+		// The runner requeueing the task will come back for more work
+		// anyway, so there is no need to wake anyone up
+		synchronized (lock) {
+			tasks.add(task);
+		}
+	}
+
+	@Override
+	Task take(int runnerIndex, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+
+		synchronized (lock) {
+			Task task;
+
+			while ((task = tasks.poll()) == null) {
+				if (scheduler.mayTerminate()) {
+					// Nothing left to do and we are shutting down
+					return null;
+				}
+
+				// No task found, so wait on the lock
+				// if a new task gets scheduled, the lock gets notified
+				long remaining = deadline - System.nanoTime();
+
+				if (timeoutNanos >= 0 && remaining <= 0) {
+					return null;
+				}
+
+				waiting++;
+
+				try {
+					if (timeoutNanos < 0) {
+						lock.wait();
+					} else {
+						TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+					}
+				} finally {
+					waiting--;
+				}
+			}
+
+			return task;
+		}
+	}
+
+	@Override
+	boolean isEmpty() {
+		synchronized (lock) {
+			return tasks.isEmpty();
+		}
+	}
+
+	@Override
+	boolean remove(Task task) {
+		synchronized (lock) {
+			return tasks.remove(task);
+		}
+	}
+
+	@Override
+	Task pollOldestHoldingSlot() {
+		synchronized (lock) {
+			return tasks.pollHoldingSlot();
+		}
+	}
+
+	@Override
+	List<Task> drain() {
+		synchronized (lock) {
+			List<Task> drained = new ArrayList<>(tasks.size());
+			tasks.drainTo(drained);
+			return drained;
+		}
+	}
+
+	@Override
+	void wakeAll() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+}
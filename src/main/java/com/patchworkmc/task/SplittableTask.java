@@ -0,0 +1,231 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.patchworkmc.function.ThrowingIntConsumer;
+import com.patchworkmc.logging.Logger;
+
+/**
+ * {@link Task} running an operation for every index of a range, splitting the range across
+ * runners on demand. The range is worked off in batches, before every batch the upper half
+ * of the remaining range is split off into a new task, if the queue of the scheduler is
+ * empty and runners might be looking for work. If all runners are busy, no task is split off
+ * at all. The size of the batches adapts to how long the operation takes. All split off tasks
+ * are tracked by the trackers of the task they have been split from, so a tracker tracking
+ * the first task completes once the whole range is done.
+ * <p>
+ * If the operation fails for any index, the remaining indices of all tasks of the range
+ * are skipped. Cancelling any task of the range, including the first one, or a deadline or
+ * the watchdog giving up on it, cancels all other tasks of the range which have not finished.
+ * </p>
+ */
+public class SplittableTask extends Task {
+	// Time a batch should take, the batch size adapts to it
+	private static final long TARGET_BATCH_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+	// Time a step may take before the task goes back to the queue, so other tasks get a turn
+	private static final long MAX_STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	// Upper bound of the batch size, keeps the intervals between split checks reasonable
+	private static final int MAX_BATCH_SIZE = 1 << 16;
+
+	private final String name;
+	private final ThrowingIntConsumer<Throwable> operation;
+
+	// Shared by all tasks of the range
+	private final AtomicBoolean failed;
+	private final AtomicBoolean cancelled;
+	private final Set<SplittableTask> parts;
+
+	// Remaining range, only accessed by the runner stepping the task
+	private int from;
+	private int to;
+	private int batchSize;
+
+	/**
+	 * Creates a new {@link SplittableTask}.
+	 *
+	 * @param name      The name of the task and the tasks split off from it
+	 * @param from      The first index of the range, inclusive
+	 * @param to        The end of the range, exclusive
+	 * @param operation The operation to run for every index of the range
+	 */
+	public SplittableTask(String name, int from, int to, ThrowingIntConsumer<Throwable> operation) {
+		this(name, from, to, operation, new AtomicBoolean(false), new AtomicBoolean(false), ConcurrentHashMap.newKeySet(), 1);
+
+		if (from > to) {
+			throw new IllegalArgumentException("Range of task " + name + " ends before it starts");
+		}
+	}
+
+	/**
+	 * Creates a new {@link SplittableTask} for a part of a range.
+	 *
+	 * @param name      The name of the task
+	 * @param from      The first index of the part, inclusive
+	 * @param to        The end of the part, exclusive
+	 * @param operation The operation to run for every index of the part
+	 * @param failed    The failure flag shared by all tasks of the range
+	 * @param cancelled The cancellation flag shared by all tasks of the range
+	 * @param parts     The tasks of the range which have not finished yet
+	 * @param batchSize The initial batch size
+	 */
+	private SplittableTask(
+			String name,
+			int from,
+			int to,
+			ThrowingIntConsumer<Throwable> operation,
+			AtomicBoolean failed,
+			AtomicBoolean cancelled,
+			Set<SplittableTask> parts,
+			int batchSize
+	) {
+		this.name = name;
+		this.from = from;
+		this.to = to;
+		this.operation = operation;
+		this.failed = failed;
+		this.cancelled = cancelled;
+		this.parts = parts;
+		this.batchSize = batchSize;
+
+		parts.add(this);
+	}
+
+	@Override
+	protected final boolean run(Logger logger) throws Throwable {
+		long stepStart = System.nanoTime();
+
+		while (from < to) {
+			if (failed.get() || isCanceled()) {
+				// Another part of the range failed or the range has been cancelled
+				return true;
+			}
+
+			trySplit();
+
+			int end = from + Math.min(batchSize, to - from);
+			long batchStart = System.nanoTime();
+
+			try {
+				for (int i = from; i < end; i++) {
+					operation.accept(i);
+				}
+			} catch (Throwable t) {
+				failed.set(true);
+				throw t;
+			}
+
+			from = end;
+
+			long now = System.nanoTime();
+			adaptBatchSize(now - batchStart);
+
+			if (now - stepStart > MAX_STEP_NANOS) {
+				break;
+			}
+		}
+
+		return from >= to;
+	}
+
+	/**
+	 * Splits off the upper half of the remaining range, if it is large enough and the
+	 * queue of the scheduler is empty.
+	 */
+	private void trySplit() {
+		if (to - from < batchSize * 2) {
+			// Not even two batches left, splitting costs more than it gains
+			return;
+		}
+
+		TaskScheduler scheduler = getScheduler();
+
+		if (scheduler.hasQueuedTasks()) {
+			// All runners have work, the split off part would just wait
+			return;
+		}
+
+		int middle = from + (to - from) / 2;
+		SplittableTask split = new SplittableTask(name, middle, to, operation, failed, cancelled, parts, batchSize);
+		to = middle;
+
+		// Track the new part before it can complete
+		for (TaskTracker tracker : trackers()) {
+			tracker.track(split);
+		}
+
+		if (cancelled.get()) {
+			// The range has been cancelled before the new part joined it
+			split.cancel();
+			return;
+		}
+
+		scheduler.scheduleUnbounded(split, null);
+	}
+
+	@Override
+	void abort(Throwable error, boolean mayInterruptIfRunning) {
+		super.abort(error, mayInterruptIfRunning);
+
+		if (!cancelled.compareAndSet(false, true)) {
+			// Another part of the range takes care of the others
+			return;
+		}
+
+		// The parts share their trackers, so no part may keep running for a range
+		// whose trackers have been informed about its cancellation
+		for (SplittableTask part : parts) {
+			if (part != this) {
+				part.abort(error, mayInterruptIfRunning);
+			}
+		}
+	}
+
+	@Override
+	boolean finish(Throwable error) {
+		boolean finished = super.finish(error);
+
+		// Finished parts can't be cancelled anymore
+		parts.remove(this);
+		return finished;
+	}
+
+	/**
+	 * Doubles or halves the batch size, so batches take about {@link SplittableTask#TARGET_BATCH_NANOS}.
+	 *
+	 * @param batchNanos The time the last batch took
+	 */
+	private void adaptBatchSize(long batchNanos) {
+		if (batchNanos < TARGET_BATCH_NANOS / 2) {
+			batchSize = Math.min(batchSize * 2, MAX_BATCH_SIZE);
+		} else if (batchNanos > TARGET_BATCH_NANOS * 2) {
+			batchSize = Math.max(batchSize / 2, 1);
+		}
+	}
+
+	@Override
+	public String name() {
+		return name;
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single suspension of a {@link Task}. Both the wake handle and the timeout race
+ * for resuming the task, this makes sure only one of them wins.
+ */
+class Suspension {
+	private final TaskScheduler scheduler;
+	private final Task task;
+	private final TaskWakeHandle handle;
+	private final long timeoutNanos;
+
+	private final AtomicBoolean resumed;
+	private volatile TimerHandle timeout;
+
+	/**
+	 * Creates a new {@link Suspension}.
+	 *
+	 * @param scheduler    The scheduler to hand the task back to when resuming
+	 * @param task         The suspended task
+	 * @param handle       The handle the task waits for or null, to only wait for the timeout
+	 * @param timeoutNanos The maximal time to wait in nanoseconds or a negative value, to wait
+	 *                     for the handle only
+	 */
+	Suspension(TaskScheduler scheduler, Task task, TaskWakeHandle handle, long timeoutNanos) {
+		this.scheduler = scheduler;
+		this.task = task;
+		this.handle = handle;
+		this.timeoutNanos = timeoutNanos;
+		this.resumed = new AtomicBoolean(false);
+	}
+
+	/**
+	 * Resumes the task if it has not been resumed already.
+	 */
+	void resume() {
+		if (!resumed.compareAndSet(false, true)) {
+			return;
+		}
+
+		TimerHandle timeout = this.timeout;
+
+		if (timeout != null) {
+			timeout.cancel();
+		}
+
+		scheduler.resumeTask(this);
+	}
+
+	/**
+	 * Resumes the task because its timeout expired, if it has not been resumed already.
+	 */
+	void expire() {
+		if (!resumed.compareAndSet(false, true)) {
+			return;
+		}
+
+		if (handle != null) {
+			handle.remove(this);
+		}
+
+		scheduler.resumeTask(this);
+	}
+
+	/**
+	 * Ends the suspension because the task has been cancelled, if it has not been resumed already.
+	 */
+	void cancel() {
+		if (!resumed.compareAndSet(false, true)) {
+			return;
+		}
+
+		TimerHandle timeout = this.timeout;
+
+		if (timeout != null) {
+			timeout.cancel();
+		}
+
+		if (handle != null) {
+			handle.remove(this);
+		}
+
+		scheduler.resumeTask(this);
+	}
+
+	/**
+	 * Sets the pending timeout of this suspension, so it can be cancelled when the
+	 * task is resumed early.
+	 *
+	 * @param timeout The pending timeout
+	 */
+	void setTimeout(TimerHandle timeout) {
+		this.timeout = timeout;
+
+		if (resumed.get()) {
+			// We lost the race against the handle, clean up ourselves
+			timeout.cancel();
+		}
+	}
+
+	Task task() {
+		return task;
+	}
+
+	TaskWakeHandle handle() {
+		return handle;
+	}
+
+	long timeoutNanos() {
+		return timeoutNanos;
+	}
+}
@@ -19,9 +19,13 @@
 
 package com.patchworkmc.task;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.patchworkmc.logging.Logger;
 
@@ -35,7 +39,9 @@ public abstract class Task {
 	 * @param logger The logger the task should use for task operation logging.
 	 * @return {@code true} if the task is done, false if it should be rescheduled.
 	 * This allows tasks to be stateful and run multiple times without blocking
-	 * any task runner inbetween.
+	 * any task runner inbetween. Tasks waiting for an external condition should
+	 * {@link Task#suspend(TaskWakeHandle) suspend} themselves before returning
+	 * false instead of being stepped over and over again.
 	 * @throws Throwable If an error in the task occurs. A task that has thrown an error
 	 *                   will be marked as failed with the error thrown and fail every
 	 *                   task operation it belongs to
@@ -49,19 +55,93 @@ public abstract class Task {
 	 */
 	public abstract String name();
 
-	// Keep track of which task trackers we are tracked by
-	private final List<TaskTracker> trackedBy;
+	/**
+	 * Retrieves the priority class of the task. Only taken into account by schedulers
+	 * using {@link TaskScheduler.QueueMode#PRIORITY}.
+	 *
+	 * @return The priority class of the task
+	 */
+	public TaskPriority priority() {
+		return TaskPriority.NORMAL;
+	}
+
+	// Marks the tracker array of a task which has finished, trackers have been notified then
+	private static final TaskTracker[] FINISHED = new TaskTracker[0];
+
+	// Keep track of which task trackers we are tracked by, copied on write
+	private final AtomicReference<TaskTracker[]> trackedBy;
+
+	// Trackers which are notified that the task finished, each of them clears its slot when
+	// it claims the notification. Guarded by the array itself
+	private volatile TaskTracker[] notifying;
 	private TaskScheduler scheduler;
 
 	public Task() {
-		trackedBy = new ArrayList<>();
+		trackedBy = new AtomicReference<>(new TaskTracker[0]);
+		interruptLock = new Object();
+		stepLock = new ReentrantLock();
+		queued = new AtomicBoolean();
 	}
 
 	// Task state store
 	private volatile boolean done;
-	private volatile boolean running;
-	private Throwable error;
-	private boolean canceled;
+	private volatile Throwable error;
+	private volatile boolean canceled;
+
+	// Thread currently stepping the task, the lock is only taken when interrupting it
+	// and by the runner after a step of a cancelled task. Doubles as the running flag
+	private volatile Thread stepThread;
+	private final Object interruptLock;
+
+	// Serializes steps. Not the monitor of the task, virtual threads blocking inside a
+	// monitor pin their carrier thread
+	private final ReentrantLock stepLock;
+
+	// Logger passed to run and the logger it has been derived from, so a new one is
+	// only created if the task is stepped by another runner. Guarded by the step lock
+	private Logger stepLogger;
+	private Logger stepLoggerParent;
+
+	// Suspension requested by the current step, only accessed by the runner stepping the task
+	private boolean suspendRequested;
+	private TaskWakeHandle suspendHandle;
+	private long suspendTimeoutNanos;
+
+	// Set while the task is suspended
+	private volatile Suspension suspension;
+
+	// Time the task has been added to the queue at, maintained by the queue and the scheduler
+	long enqueuedAt;
+
+	// Amount of steps run so far, only accessed by the runner stepping the task
+	int steps;
+
+	// Whether the task occupies a slot of the capacity of the queue it is waiting in
+	boolean holdsSlot;
+
+	// Whether the task is waiting in the queue, cleared by whoever takes it out first. Runners
+	// awaiting a tracker take its tasks out of order, leaving stale entries in the queue
+	private final AtomicBoolean queued;
+
+	// Time limits of the task in nanoseconds, 0 if there is none
+	private long deadlineNanos;
+	private long stepTimeoutNanos;
+
+	// Category of the blocking operations the task performs, null if it is CPU bound
+	private String blockingCategory;
+
+	// Timer failing the task once its deadline passed, maintained by the scheduler
+	volatile TimerHandle deadlineTimer;
+
+	// Key of the serial lane the task runs in, null if it does not run in one
+	Object laneKey;
+
+	// Queue the task is waiting in if the queue supports removing it early, links
+	// of the TaskList are guarded by the queue
+	volatile TaskQueue queue;
+	TaskList queueList;
+	Task queuePrevious;
+	Task queueNext;
 
 	/**
 	 * Runs one task iteration.
@@ -71,41 +151,172 @@ public abstract class Task {
 	 *                  being passed to the task's run method.
 	 * @throws Throwable If the task throws anything
 	 */
-	final synchronized void step(TaskScheduler scheduler, Logger logger) throws Throwable {
+	final void step(TaskScheduler scheduler, Logger logger) throws Throwable {
+		stepLock.lock();
+
+		try {
+			stepLocked(scheduler, logger);
+		} finally {
+			stepLock.unlock();
+		}
+	}
+
+	// Runs one task iteration, must hold the step lock
+	private void stepLocked(TaskScheduler scheduler, Logger logger) throws Throwable {
 		if (this.scheduler == null) {
 			this.scheduler = scheduler;
 		} else if (this.scheduler != scheduler) {
 			throw new IllegalArgumentException("Task has already run on a scheduler which is a different one");
 		}
 
-		running = true;
+		if (stepLoggerParent != logger) {
+			// Multi step tasks are usually stepped by the same few runners, so
+			// this keeps the step free of allocations
+			stepLogger = logger.sub("Task(" + name() + ")");
+			stepLoggerParent = logger;
+		}
+
+		suspendRequested = false;
+		steps++;
+		stepThread = Thread.currentThread();
+		boolean finished;
 
 		try {
-			done = run(logger.sub("Task(" + name() + ")"));
+			finished = run(stepLogger);
 		} catch (Throwable t) {
 			// Set state on error
-			running = false;
-			error = t;
+			endStep();
 			done = true;
 
-			// Inform trackers we failed
-			synchronized (trackedBy) {
-				trackedBy.forEach(tracker -> tracker.notifyFailed(this, error));
-				trackedBy.clear();
+			// Inform trackers we failed, unless the task has been aborted with an error already
+			if (!finish(t) && error == null) {
+				error = t;
 			}
 
 			throw t;
 		}
 
-		if (done) {
+		endStep();
+
+		if (finished) {
+			// Only written once, unfinished steps don't touch the flag
+			done = true;
+			suspendRequested = false;
+
 			// Inform trackers we succeeded
-			synchronized (trackedBy) {
-				trackedBy.forEach(tracker -> tracker.notifyDone(this));
-				trackedBy.clear();
+			finish(null);
+		}
+	}
+
+	/**
+	 * Marks the task as done without ever running it and informs its trackers that it
+	 * succeeded. Used for tasks a {@link TaskJournal} knows to have completed before.
+	 */
+	void skip() {
+		done = true;
+		finish(null);
+	}
+
+	/**
+	 * Detaches the task from the thread which stepped it. If the task has been cancelled,
+	 * an interrupt delivered by {@link Task#cancel(boolean)} is swallowed, so it can't hit
+	 * whatever the thread does next.
+	 */
+	private void endStep() {
+		stepThread = null;
+
+		if (canceled) {
+			// Wait for a concurrent cancel to finish interrupting us
+			synchronized (interruptLock) {
+				Thread.interrupted();
 			}
 		}
+	}
+
+	/**
+	 * Suspends the task after the current step until the handle is woken up. The task will
+	 * not be stepped again until then and does not occupy any runner while waiting. This may
+	 * only be called from within {@link Task#run(Logger)}, which then has to return false.
+	 *
+	 * @param handle The handle to wait for
+	 */
+	protected final void suspend(TaskWakeHandle handle) {
+		if (handle == null) {
+			throw new IllegalArgumentException("Tried to suspend task without a handle to wait for");
+		}
+
+		requestSuspension(handle, -1);
+	}
+
+	/**
+	 * Suspends the task after the current step until the handle is woken up or the timeout
+	 * expired, whatever happens first. This may only be called from within
+	 * {@link Task#run(Logger)}, which then has to return false.
+	 *
+	 * @param handle  The handle to wait for
+	 * @param timeout The maximal time to wait for without any specific unit
+	 * @param unit    The unit of the time specified
+	 */
+	protected final void suspend(TaskWakeHandle handle, long timeout, TimeUnit unit) {
+		if (handle == null) {
+			throw new IllegalArgumentException("Tried to suspend task without a handle to wait for");
+		}
+
+		requestSuspension(handle, Math.max(0, unit.toNanos(timeout)));
+	}
+
+	/**
+	 * Suspends the task after the current step for the specified amount of time, without
+	 * blocking a runner like sleeping would. This may only be called from within
+	 * {@link Task#run(Logger)}, which then has to return false.
+	 *
+	 * @param timeout The time to wait for without any specific unit
+	 * @param unit    The unit of the time specified
+	 */
+	protected final void suspend(long timeout, TimeUnit unit) {
+		requestSuspension(null, Math.max(0, unit.toNanos(timeout)));
+	}
+
+	// Stores the suspension request, it is picked up by the runner after the step
+	private void requestSuspension(TaskWakeHandle handle, long timeoutNanos) {
+		suspendRequested = true;
+		suspendHandle = handle;
+		suspendTimeoutNanos = timeoutNanos;
+	}
+
+	/**
+	 * Consumes the suspension requested by the last step, if any.
+	 *
+	 * @param scheduler The scheduler which stepped the task
+	 * @return The suspension to apply or null, if the task did not request one
+	 */
+	Suspension takeSuspension(TaskScheduler scheduler) {
+		if (!suspendRequested) {
+			return null;
+		}
+
+		Suspension requested = new Suspension(scheduler, this, suspendHandle, suspendTimeoutNanos);
+		suspendRequested = false;
+		suspendHandle = null;
+		return requested;
+	}
+
+	/**
+	 * Sets the suspension the task is currently waiting in.
+	 *
+	 * @param suspension The current suspension or null, if the task has been resumed
+	 */
+	void setSuspension(Suspension suspension) {
+		this.suspension = suspension;
+	}
 
-		running = false;
+	/**
+	 * Checks if the task is currently suspended and waiting to be resumed.
+	 *
+	 * @return {@code true} if the task is suspended, {@code false} otherwise
+	 */
+	public final boolean isSuspended() {
+		return suspension != null;
 	}
 
 	/**
@@ -126,15 +337,16 @@ public abstract class Task {
 	 * @return If the task is currently running on any task runner
 	 */
 	public final boolean isRunning() {
-		return running;
+		return stepThread != null;
 	}
 
 	/**
-	 * Retrieves the error which occurred in the task, if any.
+	 * Retrieves the error which occurred in the task, if any. For a task which has been
+	 * aborted, e.g. because its deadline passed, this is the error its trackers failed with.
 	 *
 	 * @return The error which occurred in the task if any, null if no error occurred
 	 */
-	public synchronized Throwable getError() {
+	public Throwable getError() {
 		return error;
 	}
 
@@ -144,14 +356,242 @@ public abstract class Task {
 	 * informs all trackers that this task is done.
 	 */
 	public final void cancel() {
+		cancel(false);
+	}
+
+	/**
+	 * Sets the task's canceled flag and informs all trackers that this task is done. A task
+	 * waiting in the queue is removed from it right away, if the queue supports it, otherwise
+	 * it is skipped once a runner picks it up. A suspended task is woken up and dropped. A
+	 * task which is currently running is not aborted, but it can poll {@link Task#isCanceled()}
+	 * to stop early and it will never be stepped again.
+	 *
+	 * @param mayInterruptIfRunning Whether the thread currently stepping the task should be
+	 *                              interrupted, the interrupt never outlives the step
+	 */
+	public final void cancel(boolean mayInterruptIfRunning) {
+		abort(null, mayInterruptIfRunning);
+	}
+
+	/**
+	 * Cancels the task like {@link Task#cancel(boolean)}, but informs the trackers that it
+	 * failed. Used if the scheduler refuses to run the task or gives up on it.
+	 *
+	 * @param error                 The error to fail the trackers with or null, to inform
+	 *                              them that the task is done
+	 * @param mayInterruptIfRunning Whether the thread currently stepping the task should be
+	 *                              interrupted
+	 */
+	void abort(Throwable error, boolean mayInterruptIfRunning) {
 		canceled = true;
-		synchronized (trackedBy) {
-			trackedBy.forEach(tracker -> tracker.notifyDone(this));
+
+		// Inform the trackers first, an interrupted step might finish right away
+		finish(error);
+
+		if (mayInterruptIfRunning) {
+			synchronized (interruptLock) {
+				Thread thread = stepThread;
+
+				if (thread != null) {
+					thread.interrupt();
+				}
+			}
 		}
+
+		TaskQueue queue = this.queue;
+
+		if (queue != null) {
+			queue.scheduler.removeCancelled(this);
+		}
+
+		Suspension suspension = this.suspension;
+
+		if (suspension != null) {
+			suspension.cancel();
+		}
+	}
+
+	/**
+	 * Notifies all trackers of this task that it finished and records the error, if it failed.
+	 * Only the first call has any effect, trackers added afterwards will not track the task at all.
+	 *
+	 * @param error The error the task failed with or null, if it succeeded
+	 * @return True if this call finished the task, false if it has finished before
+	 */
+	boolean finish(Throwable error) {
+		TaskTracker[] trackers = trackedBy.getAndSet(FINISHED);
+
+		if (trackers == FINISHED) {
+			return false;
+		}
+
+		if (error != null) {
+			// Recorded before the trackers are notified, they may look at it
+			this.error = error;
+		}
+
+		TimerHandle deadlineTimer = this.deadlineTimer;
+
+		if (deadlineTimer != null) {
+			// The deadline does not matter anymore
+			deadlineTimer.cancel();
+		}
+
+		notifying = trackers;
+
+		for (TaskTracker tracker : trackers) {
+			if (error == null) {
+				tracker.notifyDone(this);
+			} else {
+				tracker.notifyFailed(this, error);
+			}
+		}
+
+		return true;
 	}
 
 	/**
-	 * Checks wether the task has been canceled.
+	 * Claims the notification of a tracker that this task finished. Every tracker tracking the
+	 * task can claim it exactly once, after the task finished.
+	 *
+	 * @param tracker The tracker which has been notified
+	 * @return True if the tracker tracks this task and has not claimed the notification before,
+	 * false otherwise
+	 */
+	boolean claimNotification(TaskTracker tracker) {
+		TaskTracker[] notifying = this.notifying;
+
+		if (notifying == null) {
+			return false;
+		}
+
+		synchronized (notifying) {
+			for (int i = 0; i < notifying.length; i++) {
+				if (notifying[i] == tracker) {
+					notifying[i] = null;
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sets the time the task may take from being scheduled until it is done. If it is not done
+	 * by then, it is cancelled, interrupted if it is running, and its trackers fail with a
+	 * {@link java.util.concurrent.TimeoutException}. This has to be set before the task is scheduled.
+	 *
+	 * @param timeout The maximum time the task may take, without any specific unit
+	 * @param unit    The unit of the timeout
+	 * @return this
+	 */
+	public final Task deadline(long timeout, TimeUnit unit) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Deadline of task has to be positive");
+		}
+
+		deadlineNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * Sets the time a single step of the task may take. Overdue steps are detected by the
+	 * watchdog of the scheduler, which cancels the task, interrupts the step and fails the
+	 * trackers with a {@link java.util.concurrent.TimeoutException}. Overrides the default
+	 * set by {@link TaskScheduler#watchdog(long, TimeUnit, boolean)}. This has to be set before
+	 * the task is scheduled.
+	 *
+	 * @param timeout The maximum time a step may take, without any specific unit
+	 * @param unit    The unit of the timeout
+	 * @return this
+	 */
+	public final Task stepTimeout(long timeout, TimeUnit unit) {
+		if (timeout <= 0) {
+			throw new IllegalArgumentException("Step timeout of task has to be positive");
+		}
+
+		stepTimeoutNanos = unit.toNanos(timeout);
+		return this;
+	}
+
+	/**
+	 * Tags the task as blocking, e.g. on network or file I/O. Schedulers running with
+	 * {@link TaskScheduler#virtualThreads(boolean)} step blocking tasks on virtual threads
+	 * instead of their runners, with the concurrency of every category limited separately.
+	 * Other schedulers run the task like any other. This has to be set before the task is
+	 * scheduled.
+	 *
+	 * @param category The category of the blocking operations, see
+	 *                 {@link TaskScheduler#blockingLimit(String, int)}
+	 * @return this
+	 */
+	public final Task blocking(String category) {
+		if (category == null) {
+			throw new IllegalArgumentException("Tried to tag task as blocking without a category");
+		}
+
+		blockingCategory = category;
+		return this;
+	}
+
+	/**
+	 * Retrieves the category of the blocking operations the task performs.
+	 *
+	 * @return The blocking category of the task or null, if it is not blocking
+	 */
+	public final String blockingCategory() {
+		return blockingCategory;
+	}
+
+	/**
+	 * Retrieves the time the task may take from being scheduled until it is done.
+	 *
+	 * @return The deadline of the task in nanoseconds or 0, if there is none
+	 */
+	long deadlineNanos() {
+		return deadlineNanos;
+	}
+
+	/**
+	 * Retrieves the time a single step of the task may take.
+	 *
+	 * @return The step timeout of the task in nanoseconds or 0, if it has none of its own
+	 */
+	long stepTimeoutNanos() {
+		return stepTimeoutNanos;
+	}
+
+	/**
+	 * Checks wether the trackers of the task have been notified that it finished. Trackers
+	 * are notified once the task is done, has failed or has been cancelled.
+	 *
+	 * @return True if the task finished, false otherwise
+	 */
+	boolean isFinished() {
+		return trackedBy.get() == FINISHED;
+	}
+
+	/**
+	 * Marks the task as waiting in the queue, right before it is handed to the queue.
+	 */
+	void markQueued() {
+		queued.set(true);
+	}
+
+	/**
+	 * Claims the task for taking it out of the queue. Of the queue entry and runners awaiting
+	 * a tracker of the task, only the first one to claim it steps it.
+	 *
+	 * @return True if the task has been claimed, false if it has been taken already
+	 */
+	boolean unqueue() {
+		return queued.compareAndSet(true, false);
+	}
+
+	/**
+	 * Checks wether the task has been canceled. Long running steps may poll this to
+	 * stop early.
 	 *
 	 * @return True if the task has been canceled, false otherwise
 	 */
@@ -174,20 +614,37 @@ public abstract class Task {
 	 * @return A list of trackers currently tracking this task
 	 */
 	public List<TaskTracker> trackers() {
-		synchronized (trackedBy) {
-			return Collections.unmodifiableList(trackedBy);
-		}
+		// Copied, the array is reused for claiming notifications once the task finished
+		return Collections.unmodifiableList(Arrays.asList(trackedBy.get().clone()));
 	}
 
 	/**
 	 * Informs this task it is now being also tracked by the specified tracker.
 	 *
 	 * @param tracker The tracker now also tracking this task
+	 * @return {@code true} if the tracker will be notified once the task finished,
+	 * {@code false} if the task has finished already or the tracker tracks it already
 	 */
-	void nowTrackedBy(TaskTracker tracker) {
-		synchronized (trackedBy) {
-			if (!trackedBy.contains(tracker)) {
-				trackedBy.add(tracker);
+	boolean nowTrackedBy(TaskTracker tracker) {
+		while (true) {
+			TaskTracker[] current = trackedBy.get();
+
+			if (current == FINISHED) {
+				return false;
+			}
+
+			// Tasks are usually tracked by very few trackers, so a linear scan is fine
+			for (TaskTracker existing : current) {
+				if (existing == tracker) {
+					return false;
+				}
+			}
+
+			TaskTracker[] updated = Arrays.copyOf(current, current.length + 1);
+			updated[current.length] = tracker;
+
+			if (trackedBy.compareAndSet(current, updated)) {
+				return true;
 			}
 		}
 	}
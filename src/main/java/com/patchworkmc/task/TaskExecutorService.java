@@ -0,0 +1,148 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.patchworkmc.logging.Logger;
+
+/**
+ * {@link ExecutorService} view of a {@link TaskScheduler}, see {@link TaskScheduler#asExecutorService()}.
+ * Every command becomes a task on the scheduler, so commands share the runners with all other
+ * tasks. Shutting the executor down shuts the whole scheduler down.
+ */
+public class TaskExecutorService extends AbstractExecutorService {
+	/**
+	 * Task running a single command submitted to the executor.
+	 */
+	private class CommandTask extends Task {
+		private final Runnable command;
+
+		CommandTask(Runnable command) {
+			this.command = command;
+		}
+
+		@Override
+		protected boolean run(Logger logger) {
+			running.add(this);
+
+			if (stoppedNow) {
+				// Started while shutdownNow went over the running commands
+				cancel(true);
+			}
+
+			try {
+				command.run();
+			} finally {
+				running.remove(this);
+			}
+
+			return true;
+		}
+
+		@Override
+		public String name() {
+			return "ExecutorCommand";
+		}
+	}
+
+	private final TaskScheduler scheduler;
+
+	// Commands which are currently running, so shutdownNow can interrupt them
+	private final Set<CommandTask> running;
+	private volatile boolean stoppedNow;
+
+	/**
+	 * Creates a new {@link TaskExecutorService}.
+	 *
+	 * @param scheduler The scheduler to run commands on
+	 */
+	TaskExecutorService(TaskScheduler scheduler) {
+		this.scheduler = scheduler;
+		this.running = ConcurrentHashMap.newKeySet();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (command == null) {
+			throw new NullPointerException("Tried to execute null command");
+		}
+
+		if (scheduler.isShuttingDown()) {
+			throw new RejectedExecutionException("Scheduler is shutting down");
+		}
+
+		scheduler.schedule(new CommandTask(command), (TaskTracker) null);
+	}
+
+	@Override
+	public void shutdown() {
+		scheduler.shutdown();
+	}
+
+	/**
+	 * Shuts the scheduler down and removes all queued tasks. All of them are cancelled, so
+	 * the trackers of tasks which did not come from this executor complete. Commands which
+	 * are already running are cancelled and interrupted, other running tasks are not.
+	 *
+	 * @return The commands which have been submitted to the executor but never started
+	 */
+	@Override
+	public List<Runnable> shutdownNow() {
+		scheduler.shutdown();
+		stoppedNow = true;
+
+		List<Runnable> pending = new ArrayList<>();
+
+		for (Task task : scheduler.drain()) {
+			if (task instanceof CommandTask) {
+				pending.add(((CommandTask) task).command);
+			}
+		}
+
+		for (CommandTask task : running) {
+			task.cancel(true);
+		}
+
+		return pending;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return scheduler.isShuttingDown();
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return scheduler.isShuttingDown() && !scheduler.isRunning();
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return scheduler.awaitShutdown(timeout, unit);
+	}
+}
@@ -0,0 +1,394 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Builder and driver for graphs of tasks depending on each other. Once submitted, the graph is
+ * checked for cycles and every task is ranked by the longest path from it to the end of the
+ * graph. Tasks whose dependencies have completed are handed to the scheduler in order of that
+ * rank, keeping only a limited amount of them in flight, so the critical path is worked on
+ * first and the graph finishes as early as possible.
+ * <p>
+ * The whole graph is tracked by a single tracker. If a task fails or is cancelled, tasks which
+ * have not been started yet are cancelled and the tracker fails with the error.
+ * </p>
+ */
+public class TaskGraph {
+	/**
+	 * A task in a {@link TaskGraph}.
+	 */
+	public static final class Node {
+		private static final int WAITING = 0;
+		private static final int DISPATCHED = 1;
+		private static final int FINISHED = 2;
+
+		private final TaskGraph graph;
+		private final Task task;
+		private final List<Node> successors;
+		private int dependencyCount;
+		private long cost;
+
+		// Computed when the graph is submitted
+		private long bottomLevel;
+
+		// Guarded by the lock of the graph once submitted
+		private int remaining;
+		private int state;
+
+		private Node(TaskGraph graph, Task task) {
+			this.graph = graph;
+			this.task = task;
+			this.successors = new ArrayList<>();
+			this.cost = 1;
+		}
+
+		/**
+		 * Declares that this task may only start once the specified tasks have completed.
+		 *
+		 * @param dependencies The nodes of the tasks this task depends on
+		 * @return this
+		 */
+		public Node dependsOn(Node... dependencies) {
+			graph.checkNotSubmitted();
+
+			for (Node dependency : dependencies) {
+				if (dependency.graph != graph) {
+					throw new IllegalArgumentException("Tried to depend on node of a different graph");
+				}
+
+				dependency.successors.add(this);
+				dependencyCount++;
+			}
+
+			return this;
+		}
+
+		/**
+		 * Sets the estimated cost of the task, relative to the other tasks of the graph.
+		 * Used to find the critical path, defaults to 1.
+		 *
+		 * @param cost The estimated cost of the task
+		 * @return this
+		 */
+		public Node cost(long cost) {
+			graph.checkNotSubmitted();
+
+			if (cost < 0) {
+				throw new IllegalArgumentException("Tried to set negative cost");
+			}
+
+			this.cost = cost;
+			return this;
+		}
+
+		/**
+		 * Retrieves the task of this node.
+		 *
+		 * @return The task of this node
+		 */
+		public Task task() {
+			return task;
+		}
+	}
+
+	/**
+	 * Tracker of the whole graph, releases the successors of every task which completed.
+	 */
+	private final class GraphTracker extends TaskTracker {
+		GraphTracker() {
+			super(scheduler);
+		}
+
+		@Override
+		void taskFinished(Task task, Throwable error) {
+			Node node = byTask.get(task);
+
+			if (node == null) {
+				// Tracked on top of the graph, it does not release any node
+				super.taskFinished(task, error);
+				return;
+			}
+
+			if (error == null && task.isCanceled()) {
+				// Cancelled tasks inform their trackers as if they were done, but
+				// their successors would run without their results
+				error = new CancellationException("Task " + task.name() + " of the graph has been cancelled");
+			}
+
+			// Count the node first, so its error wins over those of the nodes cancelled because of it
+			super.taskFinished(task, error);
+			completed(node, error != null);
+		}
+	}
+
+	private final TaskScheduler scheduler;
+	private final List<Node> nodes;
+	private final Map<Task, Node> byTask;
+	private int maxInFlight;
+	private boolean submitted;
+
+	// Dispatching state, guarded by the lock
+	private final Object lock;
+	private final PriorityQueue<Node> ready;
+	private int inFlight;
+	private boolean failed;
+
+	/**
+	 * Creates a new, empty {@link TaskGraph}.
+	 *
+	 * @param scheduler The scheduler to run the tasks of the graph on
+	 */
+	public TaskGraph(TaskScheduler scheduler) {
+		this.scheduler = scheduler;
+		this.nodes = new ArrayList<>();
+		this.byTask = new IdentityHashMap<>();
+		this.maxInFlight = Math.max(1, scheduler.getMaxRunnerCount() * 2);
+		this.lock = new Object();
+
+		// Longest remaining path first
+		this.ready = new PriorityQueue<>((a, b) -> Long.compare(b.bottomLevel, a.bottomLevel));
+	}
+
+	/**
+	 * Adds a task to the graph.
+	 *
+	 * @param task The task to add
+	 * @return The node of the task, used to declare dependencies
+	 */
+	public Node add(Task task) {
+		checkNotSubmitted();
+
+		if (task.isDone()) {
+			throw new IllegalArgumentException("Tried to add task which is done already");
+		}
+
+		if (byTask.containsKey(task)) {
+			throw new IllegalArgumentException("Tried to add task which is part of the graph already");
+		}
+
+		Node node = new Node(this, task);
+		nodes.add(node);
+		byTask.put(task, node);
+		return node;
+	}
+
+	/**
+	 * Sets how many tasks of the graph may be handed to the scheduler at the same time.
+	 * Ready tasks beyond that wait in the graph, ordered by their rank. Defaults to twice
+	 * the maximum number of runners of the scheduler.
+	 *
+	 * @param maxInFlight The maximal amount of tasks in flight
+	 * @return this
+	 */
+	public TaskGraph maxInFlight(int maxInFlight) {
+		checkNotSubmitted();
+
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("Tried to allow less than one task in flight");
+		}
+
+		this.maxInFlight = maxInFlight;
+		return this;
+	}
+
+	/**
+	 * Validates the graph and starts running it. The graph can't be changed afterwards.
+	 *
+	 * @return The armed tracker tracking all tasks of the graph
+	 * @throws IllegalStateException If the graph contains a cycle or has been submitted already
+	 */
+	public TaskTracker submit() {
+		checkNotSubmitted();
+
+		List<Node> order = sort();
+		submitted = true;
+
+		// Walk the graph backwards, so every successor has been ranked already
+		for (int i = order.size() - 1; i >= 0; i--) {
+			Node node = order.get(i);
+			long longest = 0;
+
+			for (Node successor : node.successors) {
+				longest = Math.max(longest, successor.bottomLevel);
+			}
+
+			node.bottomLevel = node.cost + longest;
+		}
+
+		TaskTracker tracker = new GraphTracker();
+
+		synchronized (lock) {
+			for (Node node : nodes) {
+				// Track everything up front, so the tracker can't complete early
+				tracker.track(node.task);
+				node.remaining = node.dependencyCount;
+
+				if (node.remaining == 0) {
+					ready.add(node);
+				}
+			}
+		}
+
+		tracker.arm();
+		dispatch();
+
+		return tracker;
+	}
+
+	/**
+	 * Sorts the graph topologically using Kahn's algorithm.
+	 *
+	 * @return The nodes in topological order
+	 * @throws IllegalStateException If the graph contains a cycle
+	 */
+	private List<Node> sort() {
+		List<Node> order = new ArrayList<>(nodes.size());
+		ArrayDeque<Node> roots = new ArrayDeque<>();
+
+		for (Node node : nodes) {
+			node.remaining = node.dependencyCount;
+
+			if (node.remaining == 0) {
+				roots.add(node);
+			}
+		}
+
+		while (!roots.isEmpty()) {
+			Node node = roots.poll();
+			order.add(node);
+
+			for (Node successor : node.successors) {
+				if (--successor.remaining == 0) {
+					roots.add(successor);
+				}
+			}
+		}
+
+		if (order.size() != nodes.size()) {
+			// Every node which could not be sorted is part of or behind a cycle
+			for (Node node : nodes) {
+				if (node.remaining > 0) {
+					throw new IllegalStateException("Task graph contains a cycle involving task " + node.task.name());
+				}
+			}
+		}
+
+		return order;
+	}
+
+	/**
+	 * Hands ready tasks to the scheduler, as long as the limit of tasks in flight allows.
+	 */
+	private void dispatch() {
+		while (true) {
+			Node node;
+
+			synchronized (lock) {
+				if (failed || inFlight >= maxInFlight || ready.isEmpty()) {
+					return;
+				}
+
+				node = ready.poll();
+
+				if (node.state != Node.WAITING) {
+					// Cancelled while waiting
+					continue;
+				}
+
+				node.state = Node.DISPATCHED;
+				inFlight++;
+			}
+
+			// The task is tracked by the graph tracker already
+			scheduler.scheduleUnbounded(node.task, null);
+		}
+	}
+
+	/**
+	 * Releases the successors of a completed task and dispatches the tasks which became ready.
+	 * If the task failed, all tasks which have not been dispatched yet are cancelled instead.
+	 *
+	 * @param node  The node of the completed task
+	 * @param error Whether the task failed or has been cancelled
+	 */
+	private void completed(Node node, boolean error) {
+		List<Node> cancelled = Collections.emptyList();
+
+		synchronized (lock) {
+			if (node.state == Node.DISPATCHED) {
+				inFlight--;
+			}
+
+			// Tasks cancelled before being dispatched finish without ever being in flight
+			node.state = Node.FINISHED;
+
+			if (failed) {
+				// Nothing is going to run anymore
+				return;
+			}
+
+			if (error) {
+				failed = true;
+				cancelled = new ArrayList<>();
+
+				for (Node other : nodes) {
+					if (other.state == Node.WAITING) {
+						cancelled.add(other);
+					}
+				}
+
+				ready.clear();
+			} else {
+				for (Node successor : node.successors) {
+					if (--successor.remaining == 0 && successor.state == Node.WAITING) {
+						ready.add(successor);
+					}
+				}
+			}
+		}
+
+		// Cancelling notifies the tracker, so do it outside of the lock
+		for (Node other : cancelled) {
+			other.task.cancel();
+		}
+
+		dispatch();
+	}
+
+	/**
+	 * Makes sure the graph can still be modified.
+	 *
+	 * @throws IllegalStateException If the graph has been submitted already
+	 */
+	private void checkNotSubmitted() {
+		if (submitted) {
+			throw new IllegalStateException("Tried to modify task graph which has been submitted already");
+		}
+	}
+}
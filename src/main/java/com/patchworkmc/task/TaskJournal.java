@@ -0,0 +1,651 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.patchworkmc.function.ThrowingFunction;
+
+/**
+ * Append-only journal of the {@link JournaledTask}s of a {@link TaskScheduler}, see
+ * {@link TaskScheduler#journal(TaskJournal)}. Every scheduled task is recorded with its data
+ * and every task which completed successfully with its id, so after a crash or a forced
+ * shutdown, pending work can be replayed and completed work is skipped if it is scheduled again.
+ *
+ * <p>The journal is a memory-mapped file, appending a record only copies it into the mapping.
+ * The mapping is forced to disk by a background thread at a fixed interval, so a crash of the
+ * process loses nothing, while a crash of the whole system loses at most the records of the
+ * last interval. Records are checksummed, a torn record at the end of the file is discarded
+ * when the journal is opened again.</p>
+ *
+ * <p>Once the records take up twice the space they took after the last compaction, the
+ * background thread compacts the journal. The records are rewritten to a new file, which then
+ * replaces the old one, keeping only the pending tasks and the ids of the most recently
+ * completed ones. Records appended meanwhile are carried over. Tasks which completed before
+ * that are forgotten and run again if they are scheduled again.</p>
+ */
+public class TaskJournal implements Closeable {
+	private static final int MAGIC = 0x50574A31;
+	private static final int INITIAL_SIZE = 1 << 20;
+
+	// Amount of completed tasks which are remembered when compacting the journal
+	private static final int RETAINED_COMPLETED = 1 << 16;
+
+	// Length and checksum in front of every record
+	private static final int RECORD_HEADER = 8;
+
+	private static final byte SCHEDULED = 1;
+	private static final byte COMPLETED = 2;
+
+	private final Path file;
+	private final long flushIntervalNanos;
+	private final Thread flusher;
+
+	// Guarded by this
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+	private int position;
+	private boolean dirty;
+	private boolean closed;
+	private final Map<String, byte[]> pending;
+	private final Set<String> completed;
+
+	// Mappings replaced by a larger one which may still hold unforced records, guarded by this
+	private List<MappedByteBuffer> retired;
+
+	// Position at which the flusher compacts the journal, guarded by this
+	private int compactAt;
+
+	// First failure of a compaction, reported when closing, guarded by this
+	private IOException compactionFailure;
+
+	private TaskJournal(Path file, FileChannel channel, long flushIntervalNanos) throws IOException {
+		this.file = file;
+		this.channel = channel;
+		this.flushIntervalNanos = flushIntervalNanos;
+		this.pending = new LinkedHashMap<>();
+		this.completed = new LinkedHashSet<>();
+		this.retired = new ArrayList<>();
+
+		long size = channel.size();
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_SIZE));
+
+		if (size == 0 || buffer.getInt(0) == 0) {
+			buffer.putInt(0, MAGIC);
+			dirty = true;
+		} else if (buffer.getInt(0) != MAGIC) {
+			throw new IOException("File is not a task journal");
+		}
+
+		this.position = Integer.BYTES;
+		recover();
+		this.compactAt = compactionThreshold(position);
+
+		this.flusher = new Thread(this::flushLoop, "TaskJournalFlusher");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	/**
+	 * Opens a journal, creating the file if it does not exist yet. The journal is forced to
+	 * disk every 100 milliseconds.
+	 *
+	 * @param file The file to keep the journal in
+	 * @return The opened journal
+	 * @throws IOException If the file can't be opened or is not a journal
+	 */
+	public static TaskJournal open(Path file) throws IOException {
+		return open(file, 100, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens a journal, creating the file if it does not exist yet. All records in the file are
+	 * read, so the pending and completed tasks of previous runs are known right away.
+	 *
+	 * @param file          The file to keep the journal in
+	 * @param flushInterval The time between two forces of the journal to disk, without any
+	 *                      specific unit
+	 * @param unit          The unit of the flush interval
+	 * @return The opened journal
+	 * @throws IOException If the file can't be opened or is not a journal
+	 */
+	public static TaskJournal open(Path file, long flushInterval, TimeUnit unit) throws IOException {
+		if (flushInterval <= 0) {
+			throw new IllegalArgumentException("Flush interval of journal has to be positive");
+		}
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+			return new TaskJournal(file, channel, unit.toNanos(flushInterval));
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	// Reads all valid records, stops at the first empty or torn one
+	private void recover() throws IOException {
+		CRC32 crc = new CRC32();
+
+		while (position + RECORD_HEADER <= buffer.limit()) {
+			int length = buffer.getInt(position);
+
+			if (length == 0) {
+				return;
+			}
+
+			if (length < 0 || length > buffer.limit() - position - RECORD_HEADER) {
+				discardTail(buffer.limit() - position);
+				return;
+			}
+
+			byte[] record = new byte[length];
+			buffer.position(position + RECORD_HEADER);
+			buffer.get(record);
+			crc.reset();
+			crc.update(record, 0, length);
+
+			if ((int) crc.getValue() != buffer.getInt(position + Integer.BYTES)) {
+				// Written partially before a crash
+				discardTail(RECORD_HEADER + length);
+				return;
+			}
+
+			apply(record);
+			position += RECORD_HEADER + length;
+		}
+	}
+
+	// Zeroes a torn record, so it can't be mistaken for a valid one once it is overwritten partially
+	private void discardTail(int length) {
+		for (int i = 0; i < length; i++) {
+			buffer.put(position + i, (byte) 0);
+		}
+
+		dirty = true;
+	}
+
+	// Applies a record read from the file to the in-memory state
+	private void apply(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		String id = in.readUTF();
+
+		switch (type) {
+		case SCHEDULED:
+			byte[] data = new byte[in.readInt()];
+			in.readFully(data);
+
+			if (!completed.contains(id)) {
+				pending.put(id, data);
+			}
+
+			break;
+
+		case COMPLETED:
+			pending.remove(id);
+			completed.add(id);
+			break;
+
+		default:
+			throw new IOException("Unknown journal record type " + type);
+		}
+	}
+
+	/**
+	 * Checks if a newly scheduled task completed before and should be skipped.
+	 *
+	 * @param task The task which is being scheduled
+	 * @return True if the task is journaled and completed already, false otherwise
+	 */
+	synchronized boolean hasCompleted(Task task) {
+		return task instanceof JournaledTask && completed.contains(((JournaledTask) task).journalId());
+	}
+
+	/**
+	 * Records a newly scheduled task, if it is journaled. Only tasks the scheduler accepted
+	 * are recorded, so rejected tasks are not replayed.
+	 *
+	 * @param task The task which has been scheduled
+	 */
+	synchronized void scheduled(Task task) {
+		if (!(task instanceof JournaledTask)) {
+			return;
+		}
+
+		JournaledTask journaled = (JournaledTask) task;
+		String id = journaled.journalId();
+
+		if (!completed.contains(id) && !pending.containsKey(id)) {
+			// Replayed tasks are pending already and are not recorded twice
+			byte[] data = journaled.journalData();
+			pending.put(id, data);
+			append(SCHEDULED, id, data);
+		}
+	}
+
+	/**
+	 * Records a task which completed successfully, if it is journaled.
+	 *
+	 * @param task The task which completed
+	 */
+	synchronized void completed(Task task) {
+		if (!(task instanceof JournaledTask) || closed) {
+			// Tasks finishing after the journal has been closed simply run again
+			return;
+		}
+
+		String id = ((JournaledTask) task).journalId();
+
+		if (completed.add(id)) {
+			pending.remove(id);
+			append(COMPLETED, id, null);
+		}
+	}
+
+	// Encodes and appends a record, must hold the lock
+	private void append(byte type, String id, byte[] data) {
+		if (closed) {
+			throw new IllegalStateException("Tried to append to journal which is closed already");
+		}
+
+		try {
+			byte[] record = encode(type, id, data);
+
+			ensureCapacity(RECORD_HEADER + record.length);
+			buffer.position(position + RECORD_HEADER);
+			buffer.put(record);
+			buffer.putInt(position + Integer.BYTES, checksum(record));
+
+			// The length goes last, a record is only visible once it is complete
+			buffer.putInt(position, record.length);
+			position += RECORD_HEADER + record.length;
+			dirty = true;
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to append to task journal", e);
+		}
+	}
+
+	// Encodes a record without its header
+	private static byte[] encode(byte type, String id, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeUTF(id);
+
+		if (data != null) {
+			out.writeInt(data.length);
+			out.write(data);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static int checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+		return (int) crc.getValue();
+	}
+
+	// Grows the mapping if the record does not fit, must hold the lock
+	private void ensureCapacity(int length) throws IOException {
+		// Keep room for the empty length terminating the records
+		long required = (long) position + length + Integer.BYTES;
+		long size = buffer.limit();
+
+		if (required <= size) {
+			return;
+		}
+
+		while (size < required) {
+			size *= 2;
+		}
+
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Task journal exceeds the maximal size of a mapping");
+		}
+
+		// The flusher forces the old mapping, it only knows about the new one otherwise
+		retired.add(buffer);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	// Compacting once the records doubled keeps the work proportional to the appended records
+	private static int compactionThreshold(int position) {
+		return (int) Math.min(Integer.MAX_VALUE, Math.max(INITIAL_SIZE / 2, (long) position * 2));
+	}
+
+	// Rewrites the journal to the pending tasks and the most recently completed ones. Runs on the
+	// flusher, only the records appended while writing the new file are copied holding the lock.
+	private void compact() {
+		Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+		boolean replaced = false;
+
+		try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			List<String> completedIds;
+			Map<String, byte[]> pendingTasks;
+			int copied;
+
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+
+				// Forget the tasks which completed first
+				Iterator<String> oldest = completed.iterator();
+
+				for (int excess = completed.size() - RETAINED_COMPLETED; excess > 0; excess--) {
+					oldest.next();
+					oldest.remove();
+				}
+
+				completedIds = new ArrayList<>(completed);
+				pendingTasks = new LinkedHashMap<>(pending);
+				copied = position;
+			}
+
+			ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+			magic.putInt(MAGIC).flip();
+			writeFully(out, magic);
+
+			for (String id : completedIds) {
+				writeRecord(out, encode(COMPLETED, id, null));
+			}
+
+			for (Map.Entry<String, byte[]> entry : pendingTasks.entrySet()) {
+				writeRecord(out, encode(SCHEDULED, entry.getKey(), entry.getValue()));
+			}
+
+			// Records below the position are complete and never change, copy them as they are
+			ByteBuffer appended;
+
+			synchronized (this) {
+				appended = buffer.duplicate();
+				appended.limit(position).position(copied);
+				copied = position;
+			}
+
+			writeFully(out, appended);
+			out.force(true);
+
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+
+				// Only the records appended while forcing are left, they are forced by the next flush
+				appended = buffer.duplicate();
+				appended.limit(position).position(copied);
+				writeFully(out, appended);
+
+				// Replace the old file, so a crash leaves either one intact
+				Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				replaced = true;
+
+				long size = out.position();
+				long limit = buffer.limit();
+				channel.close();
+				channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(limit, size + Integer.BYTES));
+				position = (int) size;
+				compactAt = compactionThreshold(position);
+
+				// The retired mappings belong to the replaced file
+				retired.clear();
+				dirty = true;
+			}
+
+			forceDirectory(file);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (compactionFailure == null) {
+					compactionFailure = e;
+				}
+
+				// Try again once the journal doubled again
+				compactAt = compactionThreshold(position);
+			}
+		} finally {
+			if (!replaced) {
+				try {
+					Files.deleteIfExists(compacted);
+				} catch (IOException ignored) {
+					// Truncated by the next compaction
+				}
+			}
+		}
+	}
+
+	// Forces the directory entry of a renamed file to disk, on platforms which allow opening directories
+	private static void forceDirectory(Path file) {
+		Path directory = file.toAbsolutePath().getParent();
+
+		if (directory == null) {
+			return;
+		}
+
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException ignored) {
+			// Directories can't be opened on Windows, renames are durable there anyway
+		}
+	}
+
+	// Writes a record with its header to a channel
+	private static void writeRecord(FileChannel out, byte[] record) throws IOException {
+		ByteBuffer bytes = ByteBuffer.allocate(RECORD_HEADER + record.length);
+		bytes.putInt(record.length).putInt(checksum(record)).put(record).flip();
+		writeFully(out, bytes);
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer bytes) throws IOException {
+		while (bytes.hasRemaining()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Schedules all tasks which have been scheduled in a previous run, but never completed.
+	 * The tasks are recreated from their data, in the order they have been scheduled in.
+	 *
+	 * @param scheduler The scheduler to schedule the tasks on, it has to use this journal
+	 * @param decoder   The function recreating a task from its data, the task has to yield
+	 *                  the same {@link JournaledTask#journalId()} as before
+	 * @param <E>       The error type the decoder may throw
+	 * @return The tracker tracking the replayed tasks, it is armed already
+	 * @throws E If the decoder throws
+	 */
+	public <E extends Throwable> TaskTracker replay(TaskScheduler scheduler, ThrowingFunction<byte[], Task, E> decoder) throws E {
+		if (scheduler.getJournal() != this) {
+			throw new IllegalArgumentException("Tried to replay journal on scheduler which does not use it");
+		}
+
+		Map<String, byte[]> replayed;
+
+		synchronized (this) {
+			replayed = new LinkedHashMap<>(pending);
+		}
+
+		TaskTracker tracker = new TaskTracker(scheduler);
+
+		for (Map.Entry<String, byte[]> entry : replayed.entrySet()) {
+			Task task = decoder.apply(entry.getValue());
+
+			if (!(task instanceof JournaledTask) || !((JournaledTask) task).journalId().equals(entry.getKey())) {
+				throw new IllegalStateException("Decoder recreated task with another id than " + entry.getKey());
+			}
+
+			scheduler.schedule(task, tracker);
+		}
+
+		tracker.arm();
+		return tracker;
+	}
+
+	/**
+	 * Retrieves the ids of all journaled tasks which have been scheduled, but not completed yet.
+	 *
+	 * @return The ids of the pending tasks, in the order they have been scheduled in
+	 */
+	public synchronized Set<String> getPendingIds() {
+		return Collections.unmodifiableSet(new LinkedHashSet<>(pending.keySet()));
+	}
+
+	/**
+	 * Checks if a journaled task completed, either in this run or in a previous one.
+	 *
+	 * @param id The id of the task
+	 * @return {@code true} if the task completed, {@code false} otherwise
+	 */
+	public synchronized boolean isCompleted(String id) {
+		return completed.contains(id);
+	}
+
+	/**
+	 * Forces all records appended so far to disk, without waiting for the flusher.
+	 */
+	public void sync() {
+		MappedByteBuffer buffer;
+		List<MappedByteBuffer> retired;
+
+		synchronized (this) {
+			if (!dirty) {
+				return;
+			}
+
+			buffer = this.buffer;
+			retired = takeRetired();
+			dirty = false;
+		}
+
+		// Forcing takes a while, appends may continue meanwhile
+		for (MappedByteBuffer old : retired) {
+			old.force();
+		}
+
+		buffer.force();
+	}
+
+	// Takes the mappings which still have to be forced, must hold the lock
+	private List<MappedByteBuffer> takeRetired() {
+		if (retired.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		List<MappedByteBuffer> taken = retired;
+		retired = new ArrayList<>();
+		return taken;
+	}
+
+	// Forces the journal to disk at the flush interval and compacts it, until it is closed
+	private void flushLoop() {
+		while (true) {
+			boolean compact;
+
+			synchronized (this) {
+				if (closed) {
+					return;
+				}
+
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, flushIntervalNanos);
+				} catch (InterruptedException e) {
+					return;
+				}
+
+				if (closed) {
+					return;
+				}
+
+				compact = position >= compactAt;
+			}
+
+			if (compact) {
+				compact();
+			}
+
+			sync();
+		}
+	}
+
+	/**
+	 * Forces all records to disk and closes the journal. Tasks completing afterwards are not
+	 * recorded anymore, so the scheduler should have terminated before.
+	 *
+	 * @throws IOException If closing the file fails or compacting the journal failed before,
+	 *                     the journal stays intact but was not compacted in that case
+	 */
+	@Override
+	public void close() throws IOException {
+		MappedByteBuffer buffer;
+		List<MappedByteBuffer> retired;
+		FileChannel channel;
+		IOException failure;
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			buffer = this.buffer;
+			retired = takeRetired();
+			channel = this.channel;
+			failure = compactionFailure;
+			notifyAll();
+		}
+
+		for (MappedByteBuffer old : retired) {
+			old.force();
+		}
+
+		buffer.force();
+		channel.close();
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Serial lanes of a {@link TaskScheduler}, see {@link TaskScheduler#scheduleKeyed(Object, Task, TaskTracker)}.
+ * Every key with pending tasks maps to a lane holding the tasks waiting for their turn. Only
+ * the task at the head of a lane is handed to the scheduler, the next one follows once the
+ * scheduler retired it. Lanes are removed as soon as they run empty.
+ */
+class TaskLanes {
+	private final TaskScheduler scheduler;
+	private final ConcurrentHashMap<Object, ArrayDeque<Task>> lanes;
+
+	/**
+	 * Creates new {@link TaskLanes}.
+	 *
+	 * @param scheduler The scheduler running the tasks of the lanes
+	 */
+	TaskLanes(TaskScheduler scheduler) {
+		this.scheduler = scheduler;
+		this.lanes = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Appends a task to the lane of a key, starting it right away if the lane is empty.
+	 *
+	 * @param key  The key of the lane
+	 * @param task The task to append
+	 */
+	void submit(Object key, Task task) {
+		if (task.laneKey != null) {
+			throw new IllegalStateException("Task " + task.name() + " has been submitted to a lane already");
+		}
+
+		task.laneKey = key;
+
+		// Set if this call created the lane, the lanes are only modified while
+		// holding the lock of the map on their key
+		boolean[] created = new boolean[1];
+
+		lanes.compute(key, (k, lane) -> {
+			if (lane == null) {
+				created[0] = true;
+
+				// The running task stays at the head until it is retired
+				lane = new ArrayDeque<>();
+			}
+
+			lane.add(task);
+			return lane;
+		});
+
+		if (created[0]) {
+			scheduler.scheduleUnbounded(task, null);
+		}
+	}
+
+	/**
+	 * Removes a task from the head of its lane once the scheduler is done with it and
+	 * starts the next one, if any. Tasks which have been cancelled while waiting in the
+	 * lane are skipped.
+	 *
+	 * @param task The task which has been retired
+	 */
+	void retired(Task task) {
+		Task[] next = new Task[1];
+
+		lanes.computeIfPresent(task.laneKey, (k, lane) -> {
+			if (lane.peek() != task) {
+				// Not the running task of the lane, so it is retired already
+				return lane;
+			}
+
+			lane.poll();
+
+			while ((next[0] = lane.peek()) != null && next[0].isCanceled()) {
+				lane.poll();
+			}
+
+			// Don't keep lanes without pending work around
+			return next[0] != null ? lane : null;
+		});
+
+		if (next[0] != null) {
+			scheduler.scheduleUnbounded(next[0], null);
+		}
+	}
+}
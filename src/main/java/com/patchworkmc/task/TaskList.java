@@ -0,0 +1,169 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.List;
+
+/**
+ * Intrusive doubly linked FIFO list of tasks, the links are stored in the tasks themselves.
+ * Used by the lock based queues, so cancelled tasks can be unlinked in constant time. A task
+ * can only be in a single list at a time. This class is not thread safe, the owning queue
+ * has to guard it.
+ */
+class TaskList {
+	private final TaskQueue owner;
+
+	private Task head;
+	private Task tail;
+	private int size;
+
+	/**
+	 * Creates a new {@link TaskList}.
+	 *
+	 * @param owner The queue the list belongs to
+	 */
+	TaskList(TaskQueue owner) {
+		this.owner = owner;
+	}
+
+	/**
+	 * Appends a task to the end of the list.
+	 *
+	 * @param task The task to append
+	 */
+	void add(Task task) {
+		task.queueList = this;
+		task.queuePrevious = tail;
+		task.queueNext = null;
+
+		if (tail == null) {
+			head = task;
+		} else {
+			tail.queueNext = task;
+		}
+
+		tail = task;
+		size++;
+
+		// Lets cancel find the queue
+		task.queue = owner;
+	}
+
+	/**
+	 * Retrieves the first task of the list without removing it.
+	 *
+	 * @return The first task or null, if the list is empty
+	 */
+	Task peek() {
+		return head;
+	}
+
+	/**
+	 * Removes the first task of the list.
+	 *
+	 * @return The removed task or null, if the list is empty
+	 */
+	Task poll() {
+		Task task = head;
+
+		if (task != null) {
+			unlink(task);
+		}
+
+		return task;
+	}
+
+	/**
+	 * Removes the first task of the list which holds a slot of the capacity of the scheduler,
+	 * the tasks in front of it stay in place.
+	 *
+	 * @return The removed task or null, if no task of the list holds a slot
+	 */
+	Task pollHoldingSlot() {
+		for (Task task = head; task != null; task = task.queueNext) {
+			if (task.holdsSlot) {
+				unlink(task);
+				return task;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Removes a task from the list, if it is contained.
+	 *
+	 * @param task The task to remove
+	 * @return {@code true} if the task has been removed, {@code false} if it was not contained
+	 */
+	boolean remove(Task task) {
+		if (task.queueList != this) {
+			return false;
+		}
+
+		unlink(task);
+		return true;
+	}
+
+	/**
+	 * Removes all tasks of the list and appends them to another list in order.
+	 *
+	 * @param target The list to append the tasks to
+	 */
+	void drainTo(List<Task> target) {
+		Task task;
+
+		while ((task = poll()) != null) {
+			target.add(task);
+		}
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	// Unlinks a task which is contained in this list
+	private void unlink(Task task) {
+		Task previous = task.queuePrevious;
+		Task next = task.queueNext;
+
+		if (previous == null) {
+			head = next;
+		} else {
+			previous.queueNext = next;
+		}
+
+		if (next == null) {
+			tail = previous;
+		} else {
+			next.queuePrevious = previous;
+		}
+
+		task.queueList = null;
+		task.queuePrevious = null;
+		task.queueNext = null;
+		task.queue = null;
+		size--;
+	}
+}
@@ -0,0 +1,60 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Priority class of a {@link Task}. Only taken into account by schedulers using
+ * {@link TaskScheduler.QueueMode#PRIORITY}, which always prefer higher classes but
+ * let tasks of lower classes through once they have waited longer than their
+ * aging threshold, so they can't be starved.
+ */
+public enum TaskPriority {
+	/**
+	 * Latency sensitive work like progress updates and tracker continuations.
+	 */
+	HIGH(0),
+
+	/**
+	 * Default priority of all tasks. Aged after waiting for 100 milliseconds.
+	 */
+	NORMAL(TimeUnit.MILLISECONDS.toNanos(100)),
+
+	/**
+	 * Bulk work which may wait. Aged after waiting for 1 second.
+	 */
+	LOW(TimeUnit.SECONDS.toNanos(1));
+
+	private final long agingNanos;
+
+	TaskPriority(long agingNanos) {
+		this.agingNanos = agingNanos;
+	}
+
+	/**
+	 * Retrieves the time a task of this class may wait before it is considered aged.
+	 *
+	 * @return The aging threshold in nanoseconds
+	 */
+	long agingNanos() {
+		return agingNanos;
+	}
+}
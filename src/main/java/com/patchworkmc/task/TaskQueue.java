@@ -0,0 +1,164 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Base class for the queues a {@link TaskScheduler} hands its tasks to the runners with.
+ */
+abstract class TaskQueue {
+	/**
+	 * Index passed instead of a runner index if the calling thread is not a runner of the
+	 * scheduler owning this queue.
+	 */
+	static final int NO_RUNNER = -1;
+
+	// The scheduler owning this queue
+	protected final TaskScheduler scheduler;
+
+	/**
+	 * Creates a new {@link TaskQueue}.
+	 *
+	 * @param scheduler The scheduler owning this queue
+	 */
+	TaskQueue(TaskScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Registers the thread of a runner with the queue. Called by every runner
+	 * before it starts taking tasks, including restarted ones.
+	 *
+	 * @param runnerIndex The index of the runner
+	 * @param thread      The thread of the runner
+	 */
+	void register(int runnerIndex, Thread thread) {
+	}
+
+	/**
+	 * Unregisters the thread of a runner which retired. The index might be registered
+	 * again by a new runner later on.
+	 *
+	 * @param runnerIndex The index of the runner
+	 */
+	void unregister(int runnerIndex) {
+	}
+
+	/**
+	 * Adds a newly scheduled task to the queue.
+	 *
+	 * @param task        The task to add
+	 * @param runnerIndex The index of the runner scheduling the task or {@link TaskQueue#NO_RUNNER}
+	 */
+	abstract void push(Task task, int runnerIndex);
+
+	/**
+	 * Adds newly scheduled tasks to the queue at once, waking up at most one runner per task.
+	 *
+	 * @param tasks       The tasks to add, in the order they should run in
+	 * @param runnerIndex The index of the runner scheduling the tasks or {@link TaskQueue#NO_RUNNER}
+	 */
+	void pushAll(List<Task> tasks, int runnerIndex) {
+		for (Task task : tasks) {
+			push(task, runnerIndex);
+		}
+	}
+
+	/**
+	 * Adds a task back to the queue which has been stepped but is not done yet.
+	 *
+	 * @param task        The task to add back
+	 * @param runnerIndex The index of the runner which stepped the task
+	 */
+	abstract void requeue(Task task, int runnerIndex);
+
+	/**
+	 * Takes the next task to run, blocking until one becomes available.
+	 *
+	 * @param runnerIndex  The index of the runner requesting a task
+	 * @param timeoutNanos The maximum time to wait for a task in nanoseconds or a negative
+	 *                     value, to wait without a time limit
+	 * @return The task to run or null, if the scheduler is shutting down and no task is left
+	 * or the timeout elapsed
+	 * @throws InterruptedException If the runner is interrupted while waiting
+	 */
+	abstract Task take(int runnerIndex, long timeoutNanos) throws InterruptedException;
+
+	/**
+	 * Checks wether the queue currently holds no tasks.
+	 *
+	 * @return {@code true} if no task is queued, {@code false} otherwise
+	 */
+	abstract boolean isEmpty();
+
+	/**
+	 * Removes a task from the queue before any runner took it. Queues which can't remove
+	 * tasks early leave them in place, runners skip them once they are cancelled.
+	 *
+	 * @param task The task to remove
+	 * @return {@code true} if the task has been removed, {@code false} if it was not queued
+	 * or can't be removed
+	 */
+	boolean remove(Task task) {
+		return false;
+	}
+
+	/**
+	 * Removes the task holding a slot of the capacity of the scheduler which has been waiting
+	 * in the queue for the longest time. Tasks without a slot are skipped and stay where they
+	 * are. Queues which do not keep a global order may pick any task which has been waiting
+	 * for a long time, queues which can only take tasks from their front don't look past it.
+	 *
+	 * @return The removed task or null, if no task which can be removed holds a slot
+	 */
+	abstract Task pollOldestHoldingSlot();
+
+	/**
+	 * Removes the first task holding a slot of the capacity from a concurrent collection,
+	 * see {@link TaskQueue#pollOldestHoldingSlot()}.
+	 *
+	 * @param tasks The tasks in the order they have been queued in
+	 * @return The removed task or null, if none of the tasks holds a slot
+	 */
+	static Task removeHoldingSlot(Collection<Task> tasks) {
+		for (Task task : tasks) {
+			if (task.holdsSlot && tasks.remove(task)) {
+				return task;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Removes all tasks which are currently queued.
+	 *
+	 * @return The removed tasks
+	 */
+	abstract List<Task> drain();
+
+	/**
+	 * Wakes up all runners waiting for tasks, so they can notice that the scheduler
+	 * is shutting down.
+	 */
+	abstract void wakeAll();
+}
@@ -20,34 +20,208 @@
 package com.patchworkmc.task;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
+import com.patchworkmc.function.ThrowingIntConsumer;
+import com.patchworkmc.function.ThrowingRunnable;
 import com.patchworkmc.logging.LogLevel;
 import com.patchworkmc.logging.Logger;
+import com.patchworkmc.task.metrics.SchedulerMetrics;
+import com.patchworkmc.task.metrics.TraceRecorder;
 
 /**
  * Task scheduler for asynchronously running {@link Task}s.
  */
 public class TaskScheduler {
+	/**
+	 * Determines how a {@link TaskScheduler} hands out tasks to its runners.
+	 */
+	public enum QueueMode {
+		/**
+		 * All runners share a single queue guarded by one lock. Cheap for few runners
+		 * and low task counts.
+		 */
+		SHARED,
+
+		/**
+		 * Every runner owns a local deque. Tasks scheduled from within a runner are pushed
+		 * onto its own deque, idle runners steal work from the others. Scales better with
+		 * many runners and many small tasks. Priorities are not taken into account.
+		 */
+		WORK_STEALING,
+
+		/**
+		 * All runners share one queue per {@link TaskPriority}. Tasks of higher priority
+		 * classes are preferred, tasks of lower classes age so they can't be starved.
+		 */
+		PRIORITY,
+
+		/**
+		 * All runners share a preallocated ring buffer which hands tasks over without any
+		 * lock. Idle runners wait according to the {@link WaitStrategy} set with
+		 * {@link TaskScheduler#ringBuffer(int, WaitStrategy)}, which trades CPU time for
+		 * handoff latency. Priorities are not taken into account.
+		 */
+		RING_BUFFER
+	}
+
+	/**
+	 * Determines how idle runners of a {@link QueueMode#RING_BUFFER} scheduler wait for tasks.
+	 */
+	public enum WaitStrategy {
+		/**
+		 * Runners wait on a lock until a task is scheduled. Uses no CPU while idle, but waking
+		 * a runner up takes tens of microseconds.
+		 */
+		BLOCKING,
+
+		/**
+		 * Runners spin for a while, then yield and finally park for short periods. Uses little
+		 * CPU while idle, a task scheduled after the runners went to sleep waits for the next
+		 * time they wake up.
+		 */
+		SLEEPING,
+
+		/**
+		 * Runners spin for a while and then keep yielding to other threads. Low latency while
+		 * keeping the cores usable for other threads, but each idle runner shows as busy.
+		 */
+		YIELDING,
+
+		/**
+		 * Runners never stop polling. The lowest latency, but every idle runner occupies a core
+		 * entirely, so this should only be used with dedicated cores.
+		 */
+		BUSY_SPIN
+	}
+
+	/**
+	 * Determines what a {@link TaskScheduler} with a capacity does with a newly scheduled task
+	 * while its queue is full. Runner threads always step such tasks themselves, since blocking
+	 * or failing them could deadlock the scheduler.
+	 */
+	public enum OverflowPolicy {
+		/**
+		 * The scheduling thread blocks until a runner took a task from the queue.
+		 */
+		BLOCK,
+
+		/**
+		 * The scheduling thread steps the task once itself instead of queueing it. If the task is
+		 * not done after that step, it is queued regardless of the capacity.
+		 */
+		CALLER_RUNS,
+
+		/**
+		 * Scheduling fails with a {@link RejectedExecutionException}, the task is not tracked.
+		 */
+		REJECT,
+
+		/**
+		 * The oldest task waiting in the queue is dropped to make room. Its trackers fail with a
+		 * {@link RejectedExecutionException}. Tasks which have been stepped before are never
+		 * dropped, if no other task can be dropped, the new task is rejected like with
+		 * {@link OverflowPolicy#REJECT}.
+		 */
+		DROP_OLDEST
+	}
+
+	/**
+	 * Concurrency limit of blocking categories which have none set explicitly, see
+	 * {@link TaskScheduler#blockingLimit(String, int)}.
+	 */
+	public static final int DEFAULT_BLOCKING_LIMIT = 256;
+
+	/**
+	 * Amount of slots of the ring buffer of {@link QueueMode#RING_BUFFER} schedulers, unless
+	 * set with {@link TaskScheduler#ringBuffer(int, WaitStrategy)}.
+	 */
+	public static final int DEFAULT_RING_BUFFER_SIZE = 1024;
+
+	// Precision of delayed tasks and timeouts
+	private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	// Amount of timer buckets, one round of the wheel covers about 5 seconds
+	private static final int TIMER_WHEEL_SIZE = 512;
+	// Time all runners of an elastic scheduler have to be stuck in their steps while
+	// tasks are waiting before another runner is added, also the interval of the checks
+	private static final long RUNNER_STARVATION_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	// Interval the watchdog checks the steps of the runners at
+	private static final long WATCHDOG_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+	// Maximal nesting of unrelated steps run by a runner helping while it awaits a tracker,
+	// deeper waits only step tasks of their own tracker so the stack stays bounded
+	private static final int MAX_HELP_DEPTH = 16;
+	// Time a helping runner parks for if there is no work, before checking the queue again
+	private static final long HELP_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
 	private final Logger logger;
 	private final int cores;
 
 	private final ThreadGroup threadGroup;
-	private final Thread[] threads;
+	private Thread[] threads;
+
+	// Runners above the core count are added on demand and retire once they have
+	// been idle for the keep alive time
+	private int maxRunners;
+	private long keepAliveNanos;
+	private final AtomicInteger liveRunners;
+
+	// Watchdog aborting overdue steps, started on demand
+	private boolean watchdogEnabled;
+	private long defaultStepTimeoutNanos;
+	private boolean replaceStalled;
+	private final AtomicBoolean watchdogStarted;
+
+	// Whether runners record when their current step started
+	private volatile boolean trackSteps;
+
+	// Blocking tasks run on virtual threads if requested and supported by the JDK,
+	// the runners exist once the scheduler has been started
+	private boolean useVirtualThreads;
+	private final Map<String, Integer> blockingLimits;
+	private volatile VirtualRunners virtualRunners;
 
 	// Atomic flag to signal wether the task scheduler
 	// should be shut down
 	private final AtomicBoolean shutdown;
 
-	private final List<Task> tasks;
-	private final Object lock;
+	private QueueMode queueMode;
+	private TaskQueue queue;
 
-	// Used for keeping track of how many task runners
-	// are still running
+	// Shape of the queue in QueueMode#RING_BUFFER
+	private int ringBufferSize;
+	private WaitStrategy waitStrategy;
+
+	// Tasks which wait outside of the queue, because they are suspended or
+	// delayed, and will come back to it later
+	private final AtomicInteger waitingTasks;
+
+	// Serial lanes of keyed tasks
+	private final TaskLanes lanes;
+
+	// Timer for delayed tasks and suspension timeouts, created on demand
+	private HashedTimerWheel timer;
+
+	// Slots of the queue available to newly scheduled tasks, null if the queue is unbounded
+	private Semaphore capacity;
+	private OverflowPolicy overflowPolicy;
+
+	// Metrics of the scheduler, null if they are not collected
+	private SchedulerMetrics metrics;
+	private TraceRecorder trace;
+	private TaskJournal journal;
+
+	// Released once the last runner terminated
 	private final CountDownLatch countDownLatch;
 
 	/**
@@ -57,7 +231,8 @@ public class TaskScheduler {
 	 *               used for deriving loggers for the runners which in
 	 *               return will be derived for the tasks
 	 * @param cores  The number of CPU cores to use, in other words, the number
-	 *               of runners
+	 *               of runners, see {@link TaskScheduler#elastic(int, long, TimeUnit)}
+	 *               for varying it
 	 */
 	public TaskScheduler(Logger logger, int cores) {
 		this.logger = logger;
@@ -65,13 +240,314 @@ public class TaskScheduler {
 
 		threadGroup = new RestartingThreadGroup("Task Threads");
 		threads = new Thread[cores];
+		maxRunners = cores;
+		liveRunners = new AtomicInteger();
+		watchdogStarted = new AtomicBoolean(false);
 
 		shutdown = new AtomicBoolean(false);
 
-		tasks = new ArrayList<>();
-		lock = new Object();
+		queueMode = QueueMode.SHARED;
+		queue = new SharedTaskQueue(this);
+		ringBufferSize = DEFAULT_RING_BUFFER_SIZE;
+		waitStrategy = WaitStrategy.BLOCKING;
+		waitingTasks = new AtomicInteger();
+		lanes = new TaskLanes(this);
+		blockingLimits = new HashMap<>();
+
+		countDownLatch = new CountDownLatch(1);
+	}
+
+	/**
+	 * Sets the mode the scheduler uses for queueing tasks. This can only be
+	 * changed as long as the scheduler is not running and no task has been
+	 * scheduled yet.
+	 *
+	 * @param mode The mode to use for queueing tasks
+	 * @return this
+	 */
+	public TaskScheduler queueMode(QueueMode mode) {
+		if (isRunning() || !queue.isEmpty()) {
+			throw new IllegalStateException("Tried to change queue mode of scheduler which is in use already");
+		}
+
+		queueMode = mode;
+		queue = createQueue(mode);
+		return this;
+	}
+
+	/**
+	 * Switches the scheduler to {@link QueueMode#RING_BUFFER} with a ring of the specified size.
+	 * Tasks beyond the size are kept in an overflow queue, so the size only has to cover usual
+	 * bursts. This can only be changed as long as the scheduler is not running and no task has
+	 * been scheduled yet.
+	 *
+	 * @param size     The amount of slots of the ring, rounded up to the next power of two
+	 * @param strategy How idle runners wait for tasks
+	 * @return this
+	 */
+	public TaskScheduler ringBuffer(int size, WaitStrategy strategy) {
+		if (isRunning() || !queue.isEmpty()) {
+			throw new IllegalStateException("Tried to change queue mode of scheduler which is in use already");
+		}
+
+		if (size < 1 || size > 1 << 30) {
+			throw new IllegalArgumentException("Ring buffer size has to be between 1 and 2^30");
+		}
+
+		ringBufferSize = size;
+		waitStrategy = strategy;
+		return queueMode(QueueMode.RING_BUFFER);
+	}
+
+	/**
+	 * Lets the amount of runners vary between the core count passed to the constructor and a
+	 * maximum. Additional runners are started while tasks are waiting in the queue and all
+	 * runners have been stuck in their current step for a while, which happens if tasks block
+	 * on I/O. They retire once they did not find any work for the keep alive time. This can
+	 * only be changed as long as the scheduler is not running and no task has been scheduled yet.
+	 *
+	 * @param maxRunners The maximum amount of runners
+	 * @param keepAlive  The time additional runners wait for work before retiring, without any
+	 *                   specific unit
+	 * @param unit       The unit of the keep alive time
+	 * @return this
+	 */
+	public TaskScheduler elastic(int maxRunners, long keepAlive, TimeUnit unit) {
+		if (isRunning() || !queue.isEmpty()) {
+			throw new IllegalStateException("Tried to change runner count of scheduler which is in use already");
+		}
+
+		if (maxRunners < cores) {
+			throw new IllegalArgumentException("Maximum runner count of scheduler can't be lower than its core count");
+		}
+
+		if (keepAlive < 0) {
+			throw new IllegalArgumentException("Keep alive time of runners can't be negative");
+		}
+
+		this.maxRunners = maxRunners;
+		this.keepAliveNanos = unit.toNanos(keepAlive);
+		this.threads = new Thread[maxRunners];
+
+		// The queue might have to know about the additional runners
+		queue = createQueue(queueMode);
+		return this;
+	}
+
+	/**
+	 * Enables the watchdog, which aborts steps taking longer than their timeout, see
+	 * {@link Task#stepTimeout(long, TimeUnit)}. The stack of a runner stuck in an overdue step
+	 * is logged once, the task is cancelled, the step is interrupted and the trackers of the
+	 * task fail with a {@link TimeoutException}. The watchdog is also started without calling
+	 * this, once a task with a step timeout of its own is scheduled. This can only be changed
+	 * as long as the scheduler is not running.
+	 *
+	 * @param stepTimeout    The timeout for steps of tasks without a step timeout of their own,
+	 *                       without any specific unit, or 0 for no default
+	 * @param unit           The unit of the step timeout
+	 * @param replaceStalled Whether to start another runner in place of a stalled one, in case
+	 *                       the step ignores the interrupt. This requires a free slot for an
+	 *                       additional runner, see {@link TaskScheduler#elastic(int, long, TimeUnit)}
+	 * @return this
+	 */
+	public TaskScheduler watchdog(long stepTimeout, TimeUnit unit, boolean replaceStalled) {
+		if (isRunning()) {
+			throw new IllegalStateException("Tried to change watchdog of scheduler which is running already");
+		}
+
+		if (stepTimeout < 0) {
+			throw new IllegalArgumentException("Step timeout can't be negative");
+		}
+
+		this.watchdogEnabled = true;
+		this.defaultStepTimeoutNanos = unit.toNanos(stepTimeout);
+		this.replaceStalled = replaceStalled;
+		return this;
+	}
+
+	/**
+	 * Creates the queue for a queue mode.
+	 *
+	 * @param mode The mode to create the queue for
+	 * @return The new queue
+	 */
+	private TaskQueue createQueue(QueueMode mode) {
+		switch (mode) {
+		case SHARED:
+			return new SharedTaskQueue(this);
+
+		case WORK_STEALING:
+			return new WorkStealingTaskQueue(this, maxRunners);
+
+		case PRIORITY:
+			return new PriorityTaskQueue(this);
+
+		case RING_BUFFER:
+			return new RingBufferTaskQueue(this, ringBufferSize, waitStrategy);
+
+		default:
+			throw new AssertionError("UNREACHABLE");
+		}
+	}
+
+	/**
+	 * Limits the amount of newly scheduled tasks waiting in the queue. Once the limit is reached,
+	 * further tasks are handled according to the policy. Tasks coming back to the queue, because
+	 * they are not done after a step, have been suspended or delayed, or are continuations of
+	 * trackers, are always accepted. The queue is unbounded by default. This can only be changed
+	 * as long as the scheduler is not running and no task has been scheduled yet.
+	 *
+	 * @param capacity The maximum amount of newly scheduled tasks waiting in the queue
+	 * @param policy   The policy to apply to tasks scheduled while the queue is full
+	 * @return this
+	 */
+	public TaskScheduler capacity(int capacity, OverflowPolicy policy) {
+		if (isRunning() || !queue.isEmpty()) {
+			throw new IllegalStateException("Tried to change capacity of scheduler which is in use already");
+		}
+
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity of scheduler has to be positive");
+		}
+
+		this.capacity = new Semaphore(capacity);
+		this.overflowPolicy = policy;
+		return this;
+	}
+
+	/**
+	 * Sets wether the scheduler collects metrics about its tasks, see {@link TaskScheduler#getMetrics()}.
+	 * Collecting metrics costs a few counter updates and clock reads per step. This can only be
+	 * changed as long as the scheduler is not running.
+	 *
+	 * @param enabled Whether metrics should be collected
+	 * @return this
+	 */
+	public TaskScheduler collectMetrics(boolean enabled) {
+		if (isRunning()) {
+			throw new IllegalStateException("Tried to change metrics collection of scheduler which is running already");
+		}
+
+		metrics = enabled ? new SchedulerMetrics() : null;
+		return this;
+	}
+
+	/**
+	 * Retrieves the metrics collected by this scheduler. They can be polled at any time
+	 * using {@link SchedulerMetrics#snapshot()}.
+	 *
+	 * @return The metrics of this scheduler or null, if metrics are not collected
+	 */
+	public SchedulerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets wether the scheduler records a trace of its steps, queue waits and continuations,
+	 * see {@link TaskScheduler#getTraceRecorder()}. Recording costs an atomic increment and a few
+	 * clock reads per step, without recording nothing is paid besides a null check. This can
+	 * only be changed as long as the scheduler is not running.
+	 *
+	 * @param capacity The amount of events to keep, or 0 to disable recording
+	 * @return this
+	 */
+	public TaskScheduler recordTrace(int capacity) {
+		if (isRunning()) {
+			throw new IllegalStateException("Tried to change trace recording of scheduler which is running already");
+		}
+
+		trace = capacity != 0 ? new TraceRecorder(capacity) : null;
+		return this;
+	}
+
+	/**
+	 * Retrieves the trace recorded by this scheduler. It can be written out at any time
+	 * using {@link TraceRecorder#writeChromeTrace(java.io.Writer)}.
+	 *
+	 * @return The trace recorder of this scheduler or null, if no trace is recorded
+	 */
+	public TraceRecorder getTraceRecorder() {
+		return trace;
+	}
+
+	/**
+	 * Sets wether tasks tagged with {@link Task#blocking(String)} are stepped on virtual threads
+	 * instead of the runners, so blocking I/O does not occupy a runner. CPU bound tasks always
+	 * stay on the runners. Virtual threads require Java 21, on older JDKs this setting has no
+	 * effect and blocking tasks run on the runners like any other. This can only be changed as
+	 * long as the scheduler is not running.
+	 *
+	 * @param enabled Whether blocking tasks should run on virtual threads
+	 * @return this
+	 */
+	public TaskScheduler virtualThreads(boolean enabled) {
+		if (isRunning()) {
+			throw new IllegalStateException("Tried to change virtual threads of scheduler which is running already");
+		}
+
+		useVirtualThreads = enabled;
+		return this;
+	}
+
+	/**
+	 * Sets how many tasks of a blocking category may be stepped on virtual threads at once.
+	 * Categories without a limit use {@link TaskScheduler#DEFAULT_BLOCKING_LIMIT}. This can
+	 * only be changed as long as the scheduler is not running.
+	 *
+	 * @param category The blocking category, see {@link Task#blocking(String)}
+	 * @param limit    The maximal amount of tasks of the category running at once
+	 * @return this
+	 */
+	public TaskScheduler blockingLimit(String category, int limit) {
+		if (isRunning()) {
+			throw new IllegalStateException("Tried to change blocking limit of scheduler which is running already");
+		}
+
+		if (limit < 1) {
+			throw new IllegalArgumentException("Blocking limit has to be positive");
+		}
+
+		blockingLimits.put(category, limit);
+		return this;
+	}
+
+	/**
+	 * Checks wether blocking tasks are stepped on virtual threads. This is only the case
+	 * once the scheduler has been started with virtual threads enabled on Java 21 or newer.
+	 *
+	 * @return True if blocking tasks run on virtual threads, false otherwise
+	 */
+	public boolean isUsingVirtualThreads() {
+		return virtualRunners != null;
+	}
+
+	/**
+	 * Sets the journal recording the {@link JournaledTask}s of this scheduler. Scheduled tasks
+	 * are recorded with their data and tasks which complete successfully with their id. A
+	 * journaled task which completed in a previous run is not run again if it is scheduled,
+	 * it is marked as done right away instead. Pending tasks of a previous run can be replayed
+	 * using {@link TaskJournal#replay(TaskScheduler, com.patchworkmc.function.ThrowingFunction)}.
+	 * This can only be changed as long as the scheduler is not running.
+	 *
+	 * @param journal The journal to record to or null, to not journal tasks
+	 * @return this
+	 */
+	public TaskScheduler journal(TaskJournal journal) {
+		if (isRunning()) {
+			throw new IllegalStateException("Tried to change journal of scheduler which is running already");
+		}
 
-		countDownLatch = new CountDownLatch(cores);
+		this.journal = journal;
+		return this;
+	}
+
+	/**
+	 * Retrieves the journal recording the tasks of this scheduler.
+	 *
+	 * @return The journal of this scheduler or null, if tasks are not journaled
+	 */
+	public TaskJournal getJournal() {
+		return journal;
 	}
 
 	/**
@@ -81,10 +557,27 @@ public class TaskScheduler {
 	public void start() {
 		logger.info("Starting scheduler");
 		shutdown.set(false);
+		liveRunners.set(cores);
+
+		if (useVirtualThreads) {
+			if (VirtualThreads.isSupported()) {
+				virtualRunners = new VirtualRunners(this, logger, blockingLimits);
+			} else {
+				logger.warn("Virtual threads are not supported by this JDK, blocking tasks run on the runners");
+			}
+		}
 
 		for (int i = 0; i < cores; i++) {
-			threads[i] = new RunnerThread(threadGroup, logger.sub("Task runner " + (i + 1)), i);
-			threads[i].start();
+			startRunner(i);
+		}
+
+		if (maxRunners > cores) {
+			trackSteps = true;
+			timer().schedule(this::adjustRunners, RUNNER_STARVATION_NANOS);
+		}
+
+		if (watchdogEnabled) {
+			startWatchdog();
 		}
 
 		logger.info("Done!");
@@ -98,9 +591,7 @@ public class TaskScheduler {
 	public void shutdown() {
 		logger.info("Requesting scheduler stop.");
 		shutdown.set(true);
-		synchronized (lock) {
-			lock.notifyAll();
-		}
+		queue.wakeAll();
 	}
 
 	/**
@@ -112,6 +603,96 @@ public class TaskScheduler {
 		return shutdown.get();
 	}
 
+	/**
+	 * Checks wether runners may terminate as soon as the queue is empty. This is the case
+	 * if the shutdown flag is set and no suspended or delayed task is going to come back.
+	 *
+	 * @return True if runners may terminate once they are out of work, false otherwise
+	 */
+	boolean mayTerminate() {
+		return shutdown.get() && waitingTasks.get() == 0;
+	}
+
+	/**
+	 * Retrieves the number of core runners of this scheduler.
+	 *
+	 * @return The number of core runners
+	 */
+	public int getRunnerCount() {
+		return cores;
+	}
+
+	/**
+	 * Retrieves the number of runners this scheduler may grow to. This equals the
+	 * number of core runners, unless the scheduler is elastic.
+	 *
+	 * @return The maximum number of runners
+	 */
+	public int getMaxRunnerCount() {
+		return maxRunners;
+	}
+
+	/**
+	 * Retrieves the number of runners which are currently alive.
+	 *
+	 * @return The number of live runners
+	 */
+	public int getLiveRunnerCount() {
+		return liveRunners.get();
+	}
+
+	/**
+	 * Retrieves an {@link java.util.concurrent.ExecutorService} running commands as tasks on
+	 * this scheduler. Shutting it down shuts down the scheduler.
+	 *
+	 * @return An executor service backed by this scheduler
+	 */
+	public TaskExecutorService asExecutorService() {
+		return new TaskExecutorService(this);
+	}
+
+	/**
+	 * Checks wether tasks are waiting in the queue. If not, runners might be looking for work.
+	 *
+	 * @return True if tasks are queued, false otherwise
+	 */
+	boolean hasQueuedTasks() {
+		return !queue.isEmpty();
+	}
+
+	/**
+	 * Removes all tasks which are currently queued and cancels them, so their trackers
+	 * complete. Tasks of serial lanes which become due by cancelling the head of their
+	 * lane are removed as well. Suspended and delayed tasks are not affected.
+	 *
+	 * @return The removed tasks
+	 */
+	List<Task> drain() {
+		List<Task> drained = new ArrayList<>();
+		List<Task> batch;
+
+		// Retiring the head of a lane queues the next task of it, so repeat until nothing is left
+		while (!(batch = queue.drain()).isEmpty()) {
+			for (Task task : batch) {
+				if (!task.unqueue()) {
+					// Stale entry of a task a waiting runner took out of order
+					continue;
+				}
+
+				if (metrics != null) {
+					metrics.dequeued();
+				}
+
+				releaseSlot(task);
+				task.cancel();
+				retire(task);
+				drained.add(task);
+			}
+		}
+
+		return drained;
+	}
+
 	/**
 	 * Retrieves if the scheduler is running.
 	 *
@@ -141,6 +722,13 @@ public class TaskScheduler {
 		// Interrupt all threads
 		threadGroup.interrupt();
 
+		VirtualRunners virtualRunners = this.virtualRunners;
+
+		if (virtualRunners != null) {
+			// Virtual threads never belong to our thread group
+			virtualRunners.interruptAll();
+		}
+
 		try {
 			// Give the threads 2 seconds time to shut down
 			Thread.sleep(2000);
@@ -155,7 +743,9 @@ public class TaskScheduler {
 			for (Thread t : threads) {
 				// This method is deprecated for a reason... it should kill the threads
 				// regardless of what it is doing
-				t.stop();
+				if (t != null) {
+					t.stop();
+				}
 			}
 
 			// Sometimes the JVM decides to just not stop a thread. There is nothing we
@@ -180,6 +770,20 @@ public class TaskScheduler {
 		return tracker;
 	}
 
+	/**
+	 * Schedules a new task computing a value to run later.
+	 *
+	 * @param t   The task to schedule
+	 * @param <T> The type of the value computed by the task
+	 * @return The tracker carrying the value of the task, it is armed already
+	 */
+	public <T> ValueTracker<T> schedule(ValueTask<T> t) {
+		ValueTracker<T> tracker = new ValueTracker<>(this, t);
+		schedule(t, tracker, false);
+		tracker.arm();
+		return tracker;
+	}
+
 	/**
 	 * Schedules a new task to run later.
 	 *
@@ -220,6 +824,14 @@ public class TaskScheduler {
 			logger.warn("Not scheduling Task %s because scheduler is already shutting down!", t.name());
 		}
 
+		if (journalSkipped(t, tracker)) {
+			return;
+		}
+
+		// Wait for a slot before tracking, so rejected tasks are never tracked or journaled
+		boolean admitted = capacity == null || acquireSlot(t);
+		journalScheduled(t);
+
 		if (tracker != null) {
 			// If the tracker is not null, begin tracking the new task
 			tracker.track(t);
@@ -234,20 +846,1066 @@ public class TaskScheduler {
 			}
 		}
 
-		// Synchronize on lock and schedule the task
-		synchronized (lock) {
-			tasks.add(t);
-			lock.notifyAll();
+		if (metrics != null) {
+			metrics.scheduled();
 		}
+
+		armTimeouts(t);
+
+		if (!admitted) {
+			// No slot is available, the caller has to do the work
+			runInline(t);
+			return;
+		}
+
+		// Only tasks holding a slot release one once they are taken
+		t.holdsSlot = capacity != null;
+
+		// Hand the task to the queue, runners of this scheduler keep it local
+		enqueue(t, currentRunnerIndex(), false);
 	}
 
 	/**
-	 * Class of all tasks runner threads. Holds thread local information.
+	 * Schedules multiple new tasks to run later.
+	 *
+	 * @param tasks The tasks to schedule, in the order they should run in
+	 * @return The tracker tracking the tasks
+	 */
+	public TaskTracker scheduleAll(Collection<? extends Task> tasks) {
+		return scheduleAll(tasks, new TaskTracker(this));
+	}
+
+	/**
+	 * Schedules multiple new tasks at once. This is equivalent to scheduling them one by one,
+	 * but the tasks are tracked with a single update of the tracker and added to the queue with
+	 * a single lock acquisition, waking up at most as many runners as there are tasks. Schedulers
+	 * with a capacity or a journal decide about every task separately, so they schedule the
+	 * tasks one by one.
+	 *
+	 * @param tasks   The tasks to schedule, in the order they should run in
+	 * @param tracker The tracker the tasks should be tracked by or null, to not track them
+	 * @return tracker
+	 */
+	public TaskTracker scheduleAll(Collection<? extends Task> tasks, TaskTracker tracker) {
+		if (shutdown.get()) {
+			logger.warn("Not scheduling %d tasks because scheduler is already shutting down!", tasks.size());
+		}
+
+		if (capacity != null || journal != null) {
+			for (Task t : tasks) {
+				schedule(t, tracker, false);
+			}
+
+			return tracker;
+		}
+
+		// Copy first, the collection has to stay the same while being counted and queued
+		List<Task> batch = new ArrayList<>(tasks);
+
+		if (tracker != null) {
+			tracker.trackAll(batch);
+		}
+
+		if (metrics != null) {
+			metrics.scheduled(batch.size());
+		}
+
+		for (Task t : batch) {
+			armTimeouts(t);
+		}
+
+		enqueueAll(batch, currentRunnerIndex());
+		return tracker;
+	}
+
+	/**
+	 * Schedules a task without taking the capacity of the queue into account. Used for tasks
+	 * following up on work which has been accepted already and which are bounded otherwise.
+	 *
+	 * @param t       The task to schedule
+	 * @param tracker The tracker the task should be tracker by or null, to not track the
+	 *                task
+	 */
+	void scheduleUnbounded(Task t, TaskTracker tracker) {
+		if (tracker != null) {
+			tracker.track(t);
+		}
+
+		if (metrics != null) {
+			metrics.scheduled();
+		}
+
+		armTimeouts(t);
+
+		enqueue(t, currentRunnerIndex(), false);
+	}
+
+	/**
+	 * Acquires a slot of the queue for a newly scheduled task, applying the overflow policy
+	 * if the queue is full.
+	 *
+	 * @param t The task to acquire a slot for
+	 * @return True if a slot has been acquired, false if the calling thread has to run the task
+	 * @throws RejectedExecutionException If the task is rejected
+	 */
+	private boolean acquireSlot(Task t) {
+		if (capacity.tryAcquire()) {
+			return true;
+		}
+
+		if (currentRunnerIndex() != TaskQueue.NO_RUNNER) {
+			// A runner waiting for a slot might wait for itself
+			return false;
+		}
+
+		switch (overflowPolicy) {
+		case BLOCK:
+			try {
+				capacity.acquire();
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException("Interrupted while waiting to schedule task " + t.name(), e);
+			}
+
+		case CALLER_RUNS:
+			return false;
+
+		case REJECT:
+			throw new RejectedExecutionException("Queue is full, rejected task " + t.name());
+
+		case DROP_OLDEST:
+			while (!capacity.tryAcquire()) {
+				// Tasks which have been stepped before hold no slot, they are never dropped
+				Task oldest = queue.pollOldestHoldingSlot();
+
+				if (oldest == null) {
+					// The slots are held by tasks which can't be dropped
+					throw new RejectedExecutionException("Queue is full and no task can be dropped, rejected task " + t.name());
+				} else if (oldest.unqueue()) {
+					// Take over the slot of the dropped task
+					oldest.holdsSlot = false;
+					drop(oldest);
+					return true;
+				}
+
+				// Stale entry of a task a waiting runner took, its slot is released anyway
+			}
+
+			return true;
+
+		default:
+			throw new AssertionError("UNREACHABLE");
+		}
+	}
+
+	/**
+	 * Returns the slot held by a task which has been removed from the queue, if it holds one.
+	 *
+	 * @param task The task removed from the queue
+	 */
+	private void releaseSlot(Task task) {
+		if (task.holdsSlot) {
+			task.holdsSlot = false;
+			capacity.release();
+		}
+	}
+
+	/**
+	 * Drops a task which has been removed from the queue to make room for a new one.
+	 *
+	 * @param task The task to drop
+	 */
+	private void drop(Task task) {
+		if (metrics != null) {
+			metrics.dequeued();
+		}
+
+		logger.debug("Queue is full, dropping task %s", task.name());
+		task.abort(new RejectedExecutionException("Task " + task.name() + " has been dropped from the full queue"), false);
+		retire(task);
+	}
+
+	/**
+	 * Called once a task is never going to be stepped again, so the next task
+	 * of its lane can start and the journal learns about its completion.
+	 *
+	 * @param task The task which is done
+	 */
+	private void retire(Task task) {
+		if (journal != null && task.isDone() && !task.isCanceled() && task.getError() == null) {
+			journal.completed(task);
+		}
+
+		if (task.laneKey != null) {
+			lanes.retired(task);
+		}
+	}
+
+	/**
+	 * Skips a newly scheduled task if the journal knows it completed in a previous run. The
+	 * task is marked as done instead, which completes it on the tracker.
+	 *
+	 * @param t       The task which is being scheduled
+	 * @param tracker The tracker the task should be tracked by or null
+	 * @return True if the task has been skipped, false if it should be scheduled
+	 */
+	private boolean journalSkipped(Task t, TaskTracker tracker) {
+		if (journal == null || !journal.hasCompleted(t)) {
+			return false;
+		}
+
+		t.skip();
+
+		if (tracker != null) {
+			// Tracking a task which is done already only counts it as completed
+			tracker.track(t);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Records a newly scheduled task in the journal, if there is one. Only called once the
+	 * task has been accepted, so rejected tasks are never replayed.
+	 *
+	 * @param t The task which is being scheduled
+	 */
+	private void journalScheduled(Task t) {
+		if (journal != null) {
+			journal.scheduled(t);
+		}
+	}
+
+	/**
+	 * Runs an operation for every index of a range, split across the runners on demand,
+	 * see {@link SplittableTask}.
+	 *
+	 * @param name      The name of the tasks running the operation
+	 * @param from      The first index of the range, inclusive
+	 * @param to        The end of the range, exclusive
+	 * @param operation The operation to run for every index
+	 * @return The tracker completing once the operation ran for the whole range, it is armed already
+	 */
+	public TaskTracker parallelFor(String name, int from, int to, ThrowingIntConsumer<Throwable> operation) {
+		TaskTracker tracker = schedule(new SplittableTask(name, from, to, operation));
+		tracker.arm();
+		return tracker;
+	}
+
+	/**
+	 * Schedules a new task to run in the serial lane of a key, see
+	 * {@link TaskScheduler#scheduleKeyed(Object, Task, TaskTracker)}.
+	 *
+	 * @param key The key of the lane to run the task in
+	 * @param t   The task to schedule
+	 * @return The tracker tracking this task
+	 */
+	public TaskTracker scheduleKeyed(Object key, Task t) {
+		return scheduleKeyed(key, t, new TaskTracker(this));
+	}
+
+	/**
+	 * Schedules a new task to run in the serial lane of a key. Tasks scheduled with equal keys
+	 * run one at a time in the order they have been scheduled in, a task only starts once the
+	 * previous one is done, failed or has been cancelled. Tasks of different keys run in
+	 * parallel. The task is tracked right away, but only queued once it is its turn, so it
+	 * does not occupy any runner or any of the capacity of the queue while waiting.
+	 *
+	 * @param key     The key of the lane to run the task in
+	 * @param t       The task to schedule
+	 * @param tracker The tracker the task should be tracker by or null, to not track the
+	 *                task
+	 * @return tracker
+	 */
+	public TaskTracker scheduleKeyed(Object key, Task t, TaskTracker tracker) {
+		if (key == null) {
+			throw new IllegalArgumentException("Tried to schedule task in lane without a key");
+		}
+
+		if (shutdown.get()) {
+			logger.warn("Not scheduling Task %s because scheduler is already shutting down!", t.name());
+		}
+
+		if (journalSkipped(t, tracker)) {
+			return tracker;
+		}
+
+		journalScheduled(t);
+
+		if (tracker != null) {
+			tracker.track(t);
+		}
+
+		// The deadline includes the time waiting in the lane
+		armTimeouts(t);
+		lanes.submit(key, t);
+		return tracker;
+	}
+
+	/**
+	 * Schedules a new task to run after a delay. The task is tracked right away,
+	 * but only queued once the delay has passed.
+	 *
+	 * @param t     The task to schedule
+	 * @param delay The delay to wait for before queueing the task, without any specific unit
+	 * @param unit  The unit of the delay
+	 * @return The tracker tracking this task
+	 */
+	public TaskTracker scheduleAfter(Task t, long delay, TimeUnit unit) {
+		return scheduleAfter(t, new TaskTracker(this), delay, unit);
+	}
+
+	/**
+	 * Schedules a new task to run after a delay. The task is tracked right away,
+	 * but only queued once the delay has passed.
+	 *
+	 * @param t       The task to schedule
+	 * @param tracker The tracker the task should be tracker by or null, to not track the
+	 *                task
+	 * @param delay   The delay to wait for before queueing the task, without any specific unit
+	 * @param unit    The unit of the delay
+	 * @return tracker
+	 */
+	public TaskTracker scheduleAfter(Task t, TaskTracker tracker, long delay, TimeUnit unit) {
+		if (shutdown.get()) {
+			logger.warn("Not scheduling Task %s because scheduler is already shutting down!", t.name());
+		}
+
+		if (journalSkipped(t, tracker)) {
+			return tracker;
+		}
+
+		journalScheduled(t);
+
+		if (tracker != null) {
+			tracker.track(t);
+		}
+
+		if (metrics != null) {
+			metrics.scheduled();
+		}
+
+		armTimeouts(t);
+
+		// Delayed tasks keep the scheduler from terminating, just like queued ones
+		waitingTasks.incrementAndGet();
+		timer().schedule(() -> {
+			if (t.isCanceled()) {
+				retire(t);
+			} else {
+				enqueue(t, TaskQueue.NO_RUNNER, false);
+			}
+
+			leaveWaiting();
+		}, unit.toNanos(delay));
+
+		return tracker;
+	}
+
+	/**
+	 * Runs an operation periodically at a fixed rate. Every time the timer fires, a new task
+	 * running the operation is scheduled, unless the one of the previous period is still
+	 * not done. Failing runs are logged by the runners and do not stop the timer, it only
+	 * stops once it is cancelled or the scheduler is shutting down.
+	 *
+	 * @param name         The name of the tasks running the operation
+	 * @param runnable     The operation to run
+	 * @param initialDelay The delay before the first run, without any specific unit
+	 * @param period       The time between the starts of two runs, without any specific unit
+	 * @param unit         The unit of the initial delay and the period
+	 * @return The handle to cancel the timer with
+	 */
+	public TimerHandle scheduleAtFixedRate(
+			String name,
+			ThrowingRunnable<Throwable> runnable,
+			long initialDelay,
+			long period,
+			TimeUnit unit
+	) {
+		if (period <= 0) {
+			throw new IllegalArgumentException("Period of fixed rate timer has to be positive");
+		}
+
+		PeriodicTimer periodicTimer = new PeriodicTimer(this, name, runnable, unit.toNanos(period));
+		periodicTimer.start(unit.toNanos(initialDelay));
+		return periodicTimer;
+	}
+
+	/**
+	 * Suspends a task which requested a suspension during its last step.
+	 *
+	 * @param suspension The suspension the task requested
+	 */
+	private void suspendTask(Suspension suspension) {
+		waitingTasks.incrementAndGet();
+		suspension.task().setSuspension(suspension);
+
+		TaskWakeHandle handle = suspension.handle();
+
+		if (handle != null && !handle.add(suspension)) {
+			// The handle has been signalled already, so there is nothing to wait for
+			suspension.resume();
+			return;
+		}
+
+		if (suspension.timeoutNanos() >= 0) {
+			suspension.setTimeout(timer().schedule(suspension::expire, suspension.timeoutNanos()));
+		}
+
+		if (suspension.task().isCanceled()) {
+			// Cancelled before it could see the suspension
+			suspension.cancel();
+		}
+	}
+
+	/**
+	 * Hands a suspended task back to the queue. Called by the suspension once it
+	 * has been resumed by either its handle or its timeout.
+	 *
+	 * @param suspension The suspension which ended
+	 */
+	void resumeTask(Suspension suspension) {
+		Task task = suspension.task();
+		task.setSuspension(null);
+
+		if (task.isCanceled()) {
+			// Never step cancelled tasks again
+			retire(task);
+		} else {
+			enqueue(task, currentRunnerIndex(), false);
+		}
+
+		leaveWaiting();
+	}
+
+	/**
+	 * Removes a cancelled task from the queue, if it is still waiting there and the
+	 * queue supports removing it early.
+	 *
+	 * @param task The cancelled task
+	 */
+	void removeCancelled(Task task) {
+		if (!task.unqueue()) {
+			// Not queued, or a runner took it already
+			return;
+		}
+
+		queue.remove(task);
+
+		if (metrics != null) {
+			metrics.dequeued();
+		}
+
+		releaseSlot(task);
+		retire(task);
+	}
+
+	/**
+	 * Marks a task which waited outside of the queue as being back in it.
+	 */
+	private void leaveWaiting() {
+		if (waitingTasks.decrementAndGet() == 0 && shutdown.get()) {
+			// This was the last task runners were waiting for before terminating
+			queue.wakeAll();
+		}
+	}
+
+	/**
+	 * Steps a task directly on the current thread instead of queueing it. While the step
+	 * runs, the task counts as the current task of the runner, if the current thread is
+	 * one. If the task is not done after the step, it is queued like any other task.
+	 *
+	 * @param task The task to step
+	 */
+	void runInline(Task task) {
+		Thread currentThread = Thread.currentThread();
+		RunnerThread runner = null;
+		Task previous = null;
+		long previousStartedAt = 0;
+		long previousReported = 0;
+
+		if (currentThread instanceof RunnerThread && ((RunnerThread) currentThread).scheduler() == this) {
+			// Swap the current task, so tasks scheduled by the inline task are tracked correctly
+			runner = (RunnerThread) currentThread;
+			previous = runner.task;
+			previousStartedAt = runner.stepStartedAt;
+			previousReported = runner.reportedStepStart;
+			runner.enterNestedStep(task);
+		}
+
+		if (metrics != null || trace != null) {
+			// The task never waited in the queue
+			task.enqueuedAt = System.nanoTime();
+		}
+
+		try {
+			stepTask(task, runner != null ? runner.logger : logger, currentRunnerIndex(), false);
+		} finally {
+			if (runner != null) {
+				runner.leaveNestedStep(previous, previousStartedAt, previousReported);
+			}
+		}
+	}
+
+	/**
+	 * Waits for a tracker to complete, see {@link TaskTracker#await()}. Runners of this scheduler
+	 * step queued tasks while waiting, other threads park until the tracker wakes them up.
+	 *
+	 * @param tracker      The tracker to wait for
+	 * @param timeoutNanos The maximum time to wait in nanoseconds or a negative value, to wait
+	 *                     without a time limit
+	 * @return True if the tracker completed, false if the timeout elapsed before
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	boolean await(TaskTracker tracker, long timeoutNanos) throws InterruptedException {
+		if (tracker.isDone()) {
+			return true;
+		}
+
+		Thread currentThread = Thread.currentThread();
+		RunnerThread runner = null;
+
+		if (currentThread instanceof RunnerThread && ((RunnerThread) currentThread).scheduler() == this) {
+			runner = (RunnerThread) currentThread;
+		}
+
+		long deadline = System.nanoTime() + timeoutNanos;
+		TaskTracker.UnparkListener listener = new TaskTracker.UnparkListener(currentThread);
+		tracker.addListener(listener);
+
+		try {
+			while (!tracker.isDone()) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+
+				long remaining = deadline - System.nanoTime();
+
+				if (timeoutNanos >= 0 && remaining <= 0) {
+					return false;
+				}
+
+				if (runner != null) {
+					if (help(runner, tracker)) {
+						continue;
+					}
+
+					// New tasks don't wake us up, so look for them again soon
+					LockSupport.parkNanos(this, timeoutNanos < 0 ? HELP_PARK_NANOS : Math.min(remaining, HELP_PARK_NANOS));
+				} else if (timeoutNanos < 0) {
+					LockSupport.park(this);
+				} else {
+					LockSupport.parkNanos(this, remaining);
+				}
+			}
+
+			return true;
+		} finally {
+			// The tracker may complete long after we stopped waiting for it
+			listener.disarm();
+		}
+	}
+
+	/**
+	 * Takes a queued task and steps it on a runner which is waiting for a tracker, like the
+	 * runner would have done if it was not waiting. Queued tasks of the tracker itself are
+	 * preferred, which keeps nested waits depth first. While the step runs, the task counts
+	 * as the current task of the runner.
+	 *
+	 * @param runner  The waiting runner, has to be the current thread
+	 * @param tracker The tracker the runner waits for
+	 * @return True if a task has been taken, false if there is nothing to help with
+	 * @throws InterruptedException If the runner is interrupted while looking for a task
+	 */
+	private boolean help(RunnerThread runner, TaskTracker tracker) throws InterruptedException {
+		Task task = tracker.claimQueued();
+
+		if (task != null) {
+			// Queues which can't remove the entry skip it once they reach it
+			queue.remove(task);
+		} else if (runner.helpDepth >= MAX_HELP_DEPTH) {
+			return false;
+		} else {
+			// A timeout of 0 only polls the queue
+			task = queue.take(runner.runnerIndex, 0);
+
+			if (task == null) {
+				return false;
+			}
+
+			if (!task.unqueue()) {
+				// Stale entry of a task another waiting runner took
+				return true;
+			}
+		}
+
+		if (metrics != null) {
+			metrics.dequeued();
+		}
+
+		releaseSlot(task);
+
+		if (task.isCanceled()) {
+			retire(task);
+			return true;
+		}
+
+		Task previous = runner.task;
+		long previousStartedAt = runner.stepStartedAt;
+		long previousReported = runner.reportedStepStart;
+		runner.enterNestedStep(task);
+		runner.helpDepth++;
+
+		try {
+			stepTask(task, runner.logger, runner.runnerIndex, true);
+		} finally {
+			runner.leaveNestedStep(previous, previousStartedAt, previousReported);
+			runner.helpDepth--;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Steps a blocking task on the current virtual thread, the counterpart of a runner taking
+	 * a task from the queue. If the task is not done after the step, it is dispatched again.
+	 *
+	 * @param worker The virtual thread stepping the task, has to be the current thread
+	 * @param task   The task to step
+	 * @param logger The logger of the blocking category of the task
+	 */
+	void runVirtual(VirtualRunners.Worker worker, Task task, Logger logger) {
+		try {
+			if (metrics != null) {
+				metrics.dequeued();
+			}
+
+			releaseSlot(task);
+
+			if (task.isCanceled()) {
+				retire(task);
+			} else {
+				worker.task = task;
+
+				if (trackSteps) {
+					worker.stepStartedAt = System.nanoTime();
+				}
+
+				stepTask(task, logger, TaskQueue.NO_RUNNER, false);
+
+				worker.stepStartedAt = 0;
+				worker.task = null;
+			}
+		} finally {
+			leaveWaiting();
+		}
+	}
+
+	/**
+	 * Steps a task once and takes care of it afterwards. Tasks which requested a suspension
+	 * are suspended, tasks which are not done yet go back to the queue.
+	 *
+	 * @param task        The task to step
+	 * @param logger      The logger to pass to the task and to report failures with
+	 * @param runnerIndex The index of the runner stepping the task or {@link TaskQueue#NO_RUNNER}
+	 * @param requeue     Whether an unfinished task is requeued, instead of pushed like a new one
+	 */
+	private void stepTask(Task task, Logger logger, int runnerIndex, boolean requeue) {
+		SchedulerMetrics metrics = this.metrics;
+		TraceRecorder trace = this.trace;
+		long start = metrics != null || trace != null ? System.nanoTime() : 0;
+
+		try {
+			// Step the task by one
+			task.step(this, logger);
+		} catch (Throwable t) {
+			logger.error("Task %s failed!", task.name());
+			logger.thrown(LogLevel.ERROR, t);
+		}
+
+		if (metrics != null) {
+			// Record before handing the task off, another runner might pick it up right away
+			recordStep(metrics, task, start);
+		}
+
+		if (trace != null) {
+			trace.step(task.name(), task.enqueuedAt, start, System.nanoTime());
+		}
+
+		if (task.isDone() || task.isCanceled()) {
+			// Cancelled tasks are never stepped again
+			retire(task);
+		} else {
+			Suspension suspension = task.takeSuspension(this);
+
+			if (suspension != null) {
+				// The task is waiting for something, don't step it
+				// again until it is resumed
+				suspendTask(suspension);
+			} else {
+				// If the task is not done yet, reschedule it
+				enqueue(task, runnerIndex, requeue);
+			}
+		}
+	}
+
+	/**
+	 * Records the metrics of a step which just finished.
+	 *
+	 * @param metrics The metrics to record to
+	 * @param task    The task which has been stepped
+	 * @param start   The time the step started at
+	 */
+	private void recordStep(SchedulerMetrics metrics, Task task, long start) {
+		String name = task.name();
+		metrics.stepped(name, start - task.enqueuedAt, System.nanoTime() - start);
+
+		if (task.isDone()) {
+			metrics.finished(name, task.steps, task.getError() != null);
+		}
+	}
+
+	/**
+	 * Hands a task to the queue, recording it if metrics are collected or a trace is recorded.
+	 *
+	 * @param task        The task to queue
+	 * @param runnerIndex The index of the runner queueing the task or {@link TaskQueue#NO_RUNNER}
+	 * @param requeue     Whether the task has just been stepped and is not done yet
+	 */
+	private void enqueue(Task task, int runnerIndex, boolean requeue) {
+		if (metrics != null) {
+			task.enqueuedAt = System.nanoTime();
+			metrics.enqueued();
+		} else if (trace != null) {
+			task.enqueuedAt = System.nanoTime();
+		}
+
+		VirtualRunners virtualRunners = this.virtualRunners;
+
+		if (virtualRunners != null && task.blockingCategory() != null) {
+			// Blocking tasks wait for a virtual thread of their category instead of a
+			// runner, runners must not terminate until it has been stepped
+			waitingTasks.incrementAndGet();
+			virtualRunners.dispatch(task);
+			return;
+		}
+
+		task.markQueued();
+
+		if (requeue) {
+			queue.requeue(task, runnerIndex);
+		} else {
+			queue.push(task, runnerIndex);
+		}
+	}
+
+	/**
+	 * Hands multiple newly scheduled tasks to the queue at once, see
+	 * {@link TaskScheduler#enqueue(Task, int, boolean)}.
+	 *
+	 * @param tasks       The tasks to queue
+	 * @param runnerIndex The index of the runner queueing the tasks or {@link TaskQueue#NO_RUNNER}
+	 */
+	private void enqueueAll(List<Task> tasks, int runnerIndex) {
+		VirtualRunners virtualRunners = this.virtualRunners;
+		List<Task> queued = new ArrayList<>(tasks.size());
+		long now = metrics != null || trace != null ? System.nanoTime() : 0;
+
+		for (Task task : tasks) {
+			if (metrics != null) {
+				metrics.enqueued();
+			}
+
+			task.enqueuedAt = now;
+
+			if (virtualRunners != null && task.blockingCategory() != null) {
+				waitingTasks.incrementAndGet();
+				virtualRunners.dispatch(task);
+			} else {
+				task.markQueued();
+				queued.add(task);
+			}
+		}
+
+		queue.pushAll(queued, runnerIndex);
+	}
+
+	/**
+	 * Starts a runner, replacing the previous runner with the same index.
+	 *
+	 * @param runnerIndex The index of the runner
+	 */
+	private void startRunner(int runnerIndex) {
+		threads[runnerIndex] = new RunnerThread(threadGroup, logger.sub("Task runner " + (runnerIndex + 1)), runnerIndex);
+		threads[runnerIndex].start();
+	}
+
+	/**
+	 * Adds another runner if tasks are waiting while all runners are stuck in their steps.
+	 * Runs on the timer thread of an elastic scheduler and reschedules itself until the
+	 * scheduler is shutting down.
+	 */
+	private void adjustRunners() {
+		if (shutdown.get()) {
+			return;
+		}
+
+		if (!queue.isEmpty()) {
+			synchronized (threads) {
+				if (isStarving()) {
+					logger.debug("Runners are stuck, adding a runner");
+					addRunner();
+				}
+			}
+		}
+
+		timer().schedule(this::adjustRunners, RUNNER_STARVATION_NANOS);
+	}
+
+	/**
+	 * Starts an additional runner in a free slot above the core count. Must hold the
+	 * lock on the runners.
+	 *
+	 * @return True if a runner has been started, false if there is no free slot
+	 */
+	private boolean addRunner() {
+		for (int i = cores; i < maxRunners; i++) {
+			if (threads[i] == null) {
+				liveRunners.incrementAndGet();
+				startRunner(i);
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Arms the time limits of a task which is being scheduled.
+	 *
+	 * @param t The task being scheduled
+	 */
+	private void armTimeouts(Task t) {
+		if (t.deadlineNanos() > 0 && t.deadlineTimer == null) {
+			t.deadlineTimer = timer().schedule(() -> {
+				if (!t.isFinished()) {
+					t.abort(new TimeoutException("Task " + t.name() + " missed its deadline"), true);
+				}
+			}, t.deadlineNanos());
+		}
+
+		if (t.stepTimeoutNanos() > 0) {
+			startWatchdog();
+		}
+	}
+
+	/**
+	 * Starts the watchdog, if it is not running already.
+	 */
+	private void startWatchdog() {
+		if (watchdogStarted.compareAndSet(false, true)) {
+			trackSteps = true;
+			timer().schedule(this::watch, WATCHDOG_INTERVAL_NANOS);
+		}
+	}
+
+	/**
+	 * Aborts overdue steps of runners and virtual threads. Runs on the timer thread and
+	 * reschedules itself until all runners terminated.
+	 */
+	private void watch() {
+		long now = System.nanoTime();
+
+		for (Thread thread : threads) {
+			if (thread == null) {
+				continue;
+			}
+
+			RunnerThread runner = (RunnerThread) thread;
+			long stepStartedAt = runner.stepStartedAt;
+			Task task = runner.task;
+
+			if (stepStartedAt == 0 || task == null || runner.stepStartedAt != stepStartedAt) {
+				// Not stepping or just moved on to another step
+				continue;
+			}
+
+			if (isOverdue(task, stepStartedAt, now) && runner.reportedStepStart != stepStartedAt) {
+				// Only handle every stalled step once
+				runner.reportedStepStart = stepStartedAt;
+				stalled(runner, task, now - stepStartedAt);
+			}
+		}
+
+		VirtualRunners virtualRunners = this.virtualRunners;
+
+		if (virtualRunners != null) {
+			for (VirtualRunners.Worker worker : virtualRunners.workers()) {
+				long stepStartedAt = worker.stepStartedAt;
+				Task task = worker.task;
+
+				if (stepStartedAt == 0 || task == null || worker.stepStartedAt != stepStartedAt) {
+					continue;
+				}
+
+				if (isOverdue(task, stepStartedAt, now) && worker.reportedStepStart != stepStartedAt) {
+					worker.reportedStepStart = stepStartedAt;
+					stalled(worker.thread, task, now - stepStartedAt);
+				}
+			}
+		}
+
+		if (countDownLatch.getCount() != 0) {
+			timer().schedule(this::watch, WATCHDOG_INTERVAL_NANOS);
+		}
+	}
+
+	/**
+	 * Checks if a step has been running for longer than the step timeout of its task.
+	 *
+	 * @param task          The task being stepped
+	 * @param stepStartedAt The time the step started at
+	 * @param now           The current time
+	 * @return True if the step is overdue, false otherwise
+	 */
+	private boolean isOverdue(Task task, long stepStartedAt, long now) {
+		long timeout = task.stepTimeoutNanos() > 0 ? task.stepTimeoutNanos() : defaultStepTimeoutNanos;
+		return timeout > 0 && now - stepStartedAt > timeout;
+	}
+
+	/**
+	 * Handles a runner or virtual thread which is stuck in an overdue step. Only runners
+	 * are replaced, virtual threads don't occupy a runner slot.
+	 *
+	 * @param runner       The stalled thread
+	 * @param task         The task the thread is stepping
+	 * @param elapsedNanos The time the step has been running for
+	 */
+	private void stalled(Thread runner, Task task, long elapsedNanos) {
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+		StringBuilder stack = new StringBuilder();
+
+		for (StackTraceElement element : runner.getStackTrace()) {
+			stack.append("\n    at ").append(element);
+		}
+
+		logger.warn("%s is stuck in a step of task %s for %dms, aborting it:%s", runner.getName(), task.name(), elapsedMillis, stack);
+		task.abort(new TimeoutException("Step of task " + task.name() + " timed out after " + elapsedMillis + "ms"), true);
+
+		if (replaceStalled && runner instanceof RunnerThread) {
+			synchronized (threads) {
+				if (!addRunner()) {
+					logger.warn("No free slot for a runner replacing %s", runner.getName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks if all runners have been stepping their current task for longer than
+	 * {@link TaskScheduler#RUNNER_STARVATION_NANOS}. Must hold the lock on the runners.
+	 *
+	 * @return True if no runner has been available for a while, false otherwise
+	 */
+	private boolean isStarving() {
+		long now = System.nanoTime();
+
+		for (Thread thread : threads) {
+			if (thread == null) {
+				continue;
+			}
+
+			long stepStartedAt = ((RunnerThread) thread).stepStartedAt;
+
+			if (stepStartedAt == 0 || now - stepStartedAt < RUNNER_STARVATION_NANOS) {
+				// This runner is available or will be soon
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Called by runners once they stop taking tasks.
+	 *
+	 * @param runnerIndex The index of the runner
+	 */
+	private void runnerTerminated(int runnerIndex) {
+		synchronized (threads) {
+			if (runnerIndex >= cores) {
+				// Make room for a new runner in place of this one
+				threads[runnerIndex] = null;
+				queue.unregister(runnerIndex);
+			}
+
+			if (liveRunners.decrementAndGet() != 0) {
+				return;
+			}
+		}
+
+		// This was the last runner, which can only happen while shutting down
+		stopTimer();
+		countDownLatch.countDown();
+	}
+
+	/**
+	 * Retrieves the timer used for delayed tasks and timeouts, creating it if required.
+	 *
+	 * @return The timer of this scheduler
+	 */
+	synchronized HashedTimerWheel timer() {
+		if (timer == null) {
+			timer = new HashedTimerWheel(logger.sub("Timer"), "TaskSchedulerTimer", TIMER_TICK_NANOS, TIMER_WHEEL_SIZE);
+		}
+
+		return timer;
+	}
+
+	/**
+	 * Stops the timer of this scheduler, if it has been created.
+	 */
+	private synchronized void stopTimer() {
+		if (timer != null) {
+			timer.stop();
+			timer = null;
+		}
+	}
+
+	/**
+	 * Retrieves the index of the runner the current thread belongs to.
+	 *
+	 * @return The index of the current runner or {@link TaskQueue#NO_RUNNER}, if the
+	 * current thread is not a runner of this scheduler
+	 */
+	private int currentRunnerIndex() {
+		Thread currentThread = Thread.currentThread();
+
+		if (currentThread instanceof RunnerThread && ((RunnerThread) currentThread).scheduler() == this) {
+			return ((RunnerThread) currentThread).runnerIndex;
+		}
+
+		return TaskQueue.NO_RUNNER;
+	}
+
+	/**
+	 * Class of all tasks runner threads. Holds thread local information.
 	 */
 	private class RunnerThread extends Thread {
 		private final Logger logger;
 		private final int runnerIndex;
-		private Task task;
+		private volatile Task task;
+
+		// Time the current step started at or 0 if the runner waits for work, only
+		// maintained by elastic schedulers and schedulers with a watchdog
+		private volatile long stepStartedAt;
+
+		// Start of the last step the watchdog handled, restored by the runner after nested steps
+		private volatile long reportedStepStart;
+
+		// Amount of steps this runner is running on behalf of awaiting tasks
+		private int helpDepth;
 
 		/**
 		 * Creates a new {@link RunnerThread}.
@@ -263,82 +1921,123 @@ public class TaskScheduler {
 			this.runnerIndex = runnerIndex;
 		}
 
+		/**
+		 * Retrieves the scheduler this runner belongs to.
+		 *
+		 * @return The scheduler owning this runner
+		 */
+		TaskScheduler scheduler() {
+			return TaskScheduler.this;
+		}
+
+		/**
+		 * Makes a task the current task of this runner for a step nested into the current one,
+		 * so the watchdog times the nested step on its own. Has to be called by the runner.
+		 *
+		 * @param task The task of the nested step
+		 */
+		void enterNestedStep(Task task) {
+			// Hide the step from the watchdog while the task is swapped
+			stepStartedAt = 0;
+			this.task = task;
+
+			if (trackSteps) {
+				stepStartedAt = System.nanoTime();
+			}
+		}
+
+		/**
+		 * Returns to the step a nested step has been started from, see
+		 * {@link RunnerThread#enterNestedStep(Task)}. Has to be called by the runner.
+		 *
+		 * @param task              The task of the outer step
+		 * @param stepStartedAt     The time the outer step started at
+		 * @param reportedStepStart The start of the last step the watchdog handled before the nested step
+		 */
+		void leaveNestedStep(Task task, long stepStartedAt, long reportedStepStart) {
+			this.stepStartedAt = 0;
+			this.task = task;
+			this.reportedStepStart = reportedStepStart;
+			this.stepStartedAt = stepStartedAt;
+		}
+
 		@Override
 		public void run() {
 			logger.debug("Runner started.");
+			queue.register(runnerIndex, this);
+
+			// Additional runners of elastic schedulers retire when they are out of work
+			long timeoutNanos = runnerIndex >= cores ? keepAliveNanos : -1;
 
 			// Continue running as long as tasks are queued
 			// or the shutdown flag has not been set
-			while (!shutdown.get() || !tasks.isEmpty()) {
-				// Synchronize on the scheduler's lock
-				synchronized (lock) {
-					try {
-						// Try to find an available task
-						Optional<Task> optionalTask = tasks.stream().findAny();
-
-						if (!optionalTask.isPresent()) {
-							// No task found, so wait on the lock
-							// if a new task gets scheduled, the lock gets notified
-							lock.wait();
-							continue;
-						}
-
-						task = optionalTask.get();
-					} catch (InterruptedException e) {
-						// The thread was interrupted, this might occur for multiple reasons
-						// one of them is, that the scheduler's shutdown flag has been set, so
-						// test for it and break out of the loop if so
-						if (shutdown.get()) {
-							break;
-						} else {
-							// In case the shutdown flag has not been set,
-							// a spurious wakeup might have occurred. Log that and then
-							// continue as if nothing happened-
-							logger.error("Failed to wait on lock!");
-							logger.thrown(LogLevel.ERROR, e);
-						}
-
-						continue;
+			while (true) {
+				try {
+					// Wait for an available task, the queue removes it
+					// so no other runner can pick it up
+					task = queue.take(runnerIndex, timeoutNanos);
+				} catch (InterruptedException e) {
+					// The thread was interrupted, this might occur for multiple reasons
+					// one of them is, that the scheduler's shutdown flag has been set, so
+					// test for it and break out of the loop if so
+					if (shutdown.get()) {
+						break;
+					} else {
+						// In case the shutdown flag has not been set,
+						// a spurious wakeup might have occurred. Log that and then
+						// continue as if nothing happened-
+						logger.error("Failed to wait for task!");
+						logger.thrown(LogLevel.ERROR, e);
 					}
 
-					// Remove the task so no other runner can pick it up
-					tasks.remove(task);
+					continue;
+				}
+
+				if (task == null) {
+					// The scheduler is shutting down and no tasks are left,
+					// or this runner has been idle for too long
+					break;
 				}
 
+				if (!task.unqueue()) {
+					// Stale entry of a task a waiting runner took out of order
+					continue;
+				}
+
+				if (metrics != null) {
+					metrics.dequeued();
+				}
+
+				// The task left the queue, make room for a new one
+				releaseSlot(task);
+
 				// If the task has been cancelled, don't try to execute it
 				if (task.isCanceled()) {
+					retire(task);
 					continue;
 				}
 
-				try {
-					// Step the task by one
-					task.step(TaskScheduler.this, logger);
-
-					if (!task.isDone()) {
-						// If the task is not done yet, reschedule it
-						synchronized (lock) {
-							tasks.add(task);
-						}
-					}
-				} catch (Throwable t) {
-					logger.error("Task %s failed!", task.name());
-					logger.thrown(LogLevel.ERROR, t);
+				if (trackSteps) {
+					stepStartedAt = System.nanoTime();
 				}
 
+				stepTask(task, logger, runnerIndex, true);
+
 				// This runner no longer owns a task
 				task = null;
+				stepStartedAt = 0;
 			}
 
 			logger.debug("Runner terminating.");
 
-			// Make sure all other runners get notified too
-			synchronized (lock) {
-				lock.notifyAll();
+			if (shutdown.get()) {
+				// Make sure all other runners get notified too
+				queue.wakeAll();
 			}
 
 			// Decrease the amount of runners running so the
 			// scheduler can shutdown, if this was the last runner
-			countDownLatch.countDown();
+			runnerTerminated(runnerIndex);
 		}
 	}
 
@@ -365,9 +2064,10 @@ public class TaskScheduler {
 			int indexOfCrashed = ((RunnerThread) t).runnerIndex;
 
 			// Restart the task runner by its index
-			threads[indexOfCrashed] =
-					new RunnerThread(threadGroup, logger.sub("Task runner " + (indexOfCrashed + 1)), indexOfCrashed);
-			threads[indexOfCrashed].start();
+			synchronized (threads) {
+				startRunner(indexOfCrashed);
+			}
+
 			logger.info("Task runner restarted.");
 		}
 	}
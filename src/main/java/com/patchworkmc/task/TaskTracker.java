@@ -19,77 +19,351 @@
 
 package com.patchworkmc.task;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collection;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
-import com.patchworkmc.logging.Logger;
 import com.patchworkmc.function.ThrowingConsumer;
 import com.patchworkmc.function.ThrowingRunnable;
+import com.patchworkmc.task.metrics.TraceRecorder;
 
-// Please note, this is class is heavily synchronized with a lot of
-// separated blocks. This design decision has been made to minimize
-// possible deadlocks and make the execution faster. On a modern
-// computer resources are not too limited, so having a lot of locks
-// is fine.
+// Please note, this class does not take any locks. Completion only
+// counts how many tracked tasks are still pending, which makes tracking
+// and completing a task O(1) no matter how many tasks are tracked. Tasks
+// make sure every tracker tracking them is notified exactly once, see
+// Task#nowTrackedBy, and trackers only count notifications they claimed
+// from the task, see Task#claimNotification. The tracked tasks are only
+// remembered for cancelling them, on a stack which sheds finished entries
+// as it grows.
 
 /**
  * Tracker for tasks which have been submitted to a {@link TaskScheduler}.
  */
 public class TaskTracker {
+	/**
+	 * Determines where the callbacks passed to {@link TaskTracker#then(ThrowingRunnable)}
+	 * and {@link TaskTracker#except(ThrowingConsumer)} run.
+	 */
+	public enum ContinuationMode {
+		/**
+		 * The callback is scheduled as a new task. Use this for callbacks which block or
+		 * take a while, so they don't hold up the thread completing the tracker.
+		 */
+		SCHEDULED,
+
+		/**
+		 * The callback runs directly on the thread which completed the tracker, saving the
+		 * round trip through the queue. Meant for short, non blocking callbacks. Falls
+		 * back to scheduling if too many inline callbacks are nested on the thread.
+		 */
+		INLINE
+	}
+
+	// How many inline callbacks may be nested on one thread before they are scheduled
+	private static final int MAX_INLINE_DEPTH = 32;
+	private static final ThreadLocal<int[]> INLINE_DEPTH = ThreadLocal.withInitial(() -> new int[1]);
+
+	// Size from which on the stack of tracked tasks sheds finished entries, whenever
+	// it doubled in size
+	private static final int COMPACT_THRESHOLD = 1024;
+
+	// How many of the most recently tracked entries are searched for a queued task to help with
+	private static final int CLAIM_SEARCH_DEPTH = 64;
+
+	/**
+	 * Entry of the stack of tasks and trackers tracked by a {@link TaskTracker}.
+	 */
+	private static final class TrackedNode {
+		private final Object tracked;
+		private final TrackedNode next;
+		private final int depth;
+
+		/**
+		 * Creates a new {@link TrackedNode}.
+		 *
+		 * @param tracked The task or tracker which is tracked
+		 * @param next    The node below this one or null, if this is the bottom
+		 */
+		TrackedNode(Object tracked, TrackedNode next) {
+			this.tracked = tracked;
+			this.next = next;
+			this.depth = next == null ? 1 : next.depth + 1;
+		}
+	}
+
+	// Marks the tracked stack of a tracker which has been cancelled
+	private static final TrackedNode CANCELLED = new TrackedNode(null, null);
+
+	/**
+	 * Base class for callbacks fired once a {@link TaskTracker} has completed.
+	 * Listeners are kept on a lock free stack, so they carry their own link.
+	 */
+	abstract static class TaskTrackerListener {
+		private TaskTrackerListener next;
+
+		/**
+		 * Fires the listener.
+		 *
+		 * @param source The tracker which has completed
+		 */
+		abstract void fire(TaskTracker source);
+
+		/**
+		 * Checks wether the listener does not have to be fired anymore. Disarmed listeners
+		 * are discarded once they are on top of the stack.
+		 *
+		 * @return True if the listener has been disarmed, false otherwise
+		 */
+		boolean isDisarmed() {
+			return false;
+		}
+	}
+
 	/**
 	 * Helper class storing callbacks an their associated {@link TaskTracker}.
 	 */
-	static class TaskTrackerListener {
-		private final ThrowingRunnable<Throwable> onSuccess;
+	static class ContinuationListener extends TaskTrackerListener {
+		private final Task onSuccess;
 		private final ThrowingConsumer<Throwable, Throwable> onFail;
 		private final TaskTracker newTracker;
+		private final ContinuationMode mode;
 
 		/**
-		 * Creates a new {@link TaskTrackerListener}.
+		 * Creates a new {@link ContinuationListener}.
 		 *
-		 * @param onSuccess  The callback to execute in case all tracked
+		 * @param onSuccess  The task to run in case all tracked
 		 *                   tasks succeeded
 		 * @param onFail     The callback to execute in case a tracked
 		 *                   task failed
 		 * @param newTracker The tracker to execute these callbacks on
+		 * @param mode       Where to execute the callbacks
 		 */
-		TaskTrackerListener(
-				ThrowingRunnable<Throwable> onSuccess,
+		ContinuationListener(
+				Task onSuccess,
 				ThrowingConsumer<Throwable, Throwable> onFail,
-				TaskTracker newTracker
+				TaskTracker newTracker,
+				ContinuationMode mode
 		) {
 			this.onSuccess = onSuccess;
 			this.onFail = onFail;
 			this.newTracker = newTracker;
+			this.mode = mode;
+		}
+
+		@Override
+		void fire(TaskTracker source) {
+			if (newTracker.done) {
+				// This should never happen, since we have a reservation blocking
+				// the other tracker
+				throw new IllegalStateException("Dependent tracker is done already");
+			}
+
+			int[] depth = null;
+
+			if (mode == ContinuationMode.INLINE) {
+				depth = INLINE_DEPTH.get();
+
+				if (depth[0] < MAX_INLINE_DEPTH) {
+					// Releasing the new tracker below may fire further inline
+					// callbacks, so the depth covers the whole listener
+					depth[0]++;
+				} else {
+					depth = null;
+				}
+			}
+
+			try {
+				fire(source, depth != null);
+			} finally {
+				if (depth != null) {
+					depth[0]--;
+				}
+			}
+		}
+
+		/**
+		 * Runs or schedules the callback matching the state of the source tracker and
+		 * releases the reservation on the new tracker afterwards.
+		 *
+		 * @param source The tracker which has completed
+		 * @param inline Whether the callback should run on the current thread
+		 */
+		private void fire(TaskTracker source, boolean inline) {
+			Throwable error = source.error.get();
+
+			if (error == null) {
+				// All tasks completed successfully
+				if (onSuccess != null) {
+					// If the callback is not null, run it
+					run(source.scheduler, onSuccess, inline);
+				}
+
+				// Release our reservation, so we no longer
+				// block the other tracker with it
+				newTracker.release(null);
+			} else {
+				if (onFail != null) {
+					// If the callback is not null, wrap and run it
+					run(source.scheduler, new UniversalRunnableTask("SuccessListener",
+							() -> onFail.accept(error), TaskPriority.HIGH), inline);
+					// Succeed the reservation, it will be up to the callback
+					// to fail if the chain should be failed further
+					newTracker.release(null);
+				} else {
+					// No callback has been supplied so fail the
+					// other tracker with our error
+					newTracker.release(error);
+				}
+			}
+		}
+
+		/**
+		 * Runs the task of a callback, tracked by the new tracker.
+		 *
+		 * @param scheduler The scheduler to run the task on
+		 * @param task      The task wrapping the callback
+		 * @param inline    Whether to step the task on the current thread instead of scheduling it
+		 */
+		private void run(TaskScheduler scheduler, Task task, boolean inline) {
+			TraceRecorder trace = scheduler.getTraceRecorder();
+
+			if (trace != null) {
+				trace.continuation(task.name(), inline);
+			}
+
+			if (inline) {
+				newTracker.track(task);
+				scheduler.runInline(task);
+			} else {
+				scheduler.scheduleUnbounded(task, newTracker);
+			}
+		}
+	}
+
+	/**
+	 * Listener waking up a thread waiting for a tracker, see {@link TaskTracker#await(long, TimeUnit)}.
+	 */
+	static class UnparkListener extends TaskTrackerListener {
+		// Cleared once the thread stopped waiting
+		private volatile Thread thread;
+
+		/**
+		 * Creates a new {@link UnparkListener}.
+		 *
+		 * @param thread The thread waiting for the tracker
+		 */
+		UnparkListener(Thread thread) {
+			this.thread = thread;
+		}
+
+		@Override
+		void fire(TaskTracker source) {
+			Thread thread = this.thread;
+
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+
+		/**
+		 * Disarms the listener once the thread stopped waiting, so it does not receive
+		 * an unpark meant for a wait which is long over.
+		 */
+		void disarm() {
+			thread = null;
+		}
+
+		@Override
+		boolean isDisarmed() {
+			return thread == null;
 		}
 	}
 
 	/**
-	 * Dummy task for connection {@link TaskTracker}s with each other.
+	 * Listener completing a tracker which tracks another tracker as a whole.
 	 */
-	static class DummyTask extends Task {
+	static class DependentListener extends TaskTrackerListener {
+		private final TaskTracker dependent;
+
+		/**
+		 * Creates a new {@link DependentListener}.
+		 *
+		 * @param dependent The tracker waiting for the tracker this listener is added to
+		 */
+		DependentListener(TaskTracker dependent) {
+			this.dependent = dependent;
+		}
+
 		@Override
-		protected boolean run(Logger logger) {
-			throw new UnsupportedOperationException("The dummy task cannot be run");
+		void fire(TaskTracker source) {
+			dependent.release(source.error.get());
+		}
+	}
+
+	/**
+	 * Listener completing a {@link CompletableFuture} once a tracker has completed.
+	 *
+	 * @param <T> The type of the value of the future
+	 */
+	static class FutureListener<T> extends TaskTrackerListener {
+		private final CompletableFuture<T> future;
+		private final ValueTracker<? extends T> valueSource;
+
+		/**
+		 * Creates a new {@link FutureListener}.
+		 *
+		 * @param future      The future to complete
+		 * @param valueSource The tracker to take the value of the future from or null,
+		 *                    to complete it with null
+		 */
+		FutureListener(CompletableFuture<T> future, ValueTracker<? extends T> valueSource) {
+			this.future = future;
+			this.valueSource = valueSource;
 		}
 
 		@Override
-		public String name() {
-			return "DummyTask";
+		void fire(TaskTracker source) {
+			Throwable error = source.getError();
+
+			if (error != null) {
+				future.completeExceptionally(error);
+			} else {
+				future.complete(valueSource != null ? valueSource.getValue() : null);
+			}
 		}
 	}
 
+	// Marks the listener stack of a tracker which has fired already
+	private static final TaskTrackerListener FIRED = new TaskTrackerListener() {
+		@Override
+		void fire(TaskTracker source) {
+			throw new AssertionError("UNREACHABLE");
+		}
+	};
+
 	// Things the tracker requires
 	private final TaskScheduler scheduler;
-	private final List<Task> trackedTasks;
-	private final List<TaskTrackerListener> listeners;
-	private final DummyTask dummyTask;
-	private final List<TaskTracker> trackedBy;
+	private final AtomicReference<TaskTrackerListener> listeners;
+
+	// Tasks and trackers tracked by this tracker which may not have finished yet
+	private final AtomicReference<TrackedNode> tracked;
+
+	// Tracker state, the pending count includes one unit which is released by arming
+	private final AtomicInteger pending;
+	private final AtomicBoolean armed;
+	private final AtomicBoolean fired;
+	private final AtomicReference<Throwable> error;
+	private volatile boolean done;
 
-	// Tracker state
-	private boolean done; // synchronized via the listeners field
-	private volatile boolean armed;
-	private Throwable error;
+	// Where callbacks run if not specified explicitly
+	private volatile ContinuationMode continuationMode;
 
 	/**
 	 * Creates a new {@link TaskTracker} associated with a {@link TaskScheduler}.
@@ -98,118 +372,197 @@ public class TaskTracker {
 	 */
 	public TaskTracker(TaskScheduler scheduler) {
 		this.scheduler = scheduler;
-		this.trackedTasks = new ArrayList<>();
-		this.listeners = new ArrayList<>();
-		this.dummyTask = new DummyTask();
-		this.trackedBy = new ArrayList<>();
+		this.listeners = new AtomicReference<>();
+		this.tracked = new AtomicReference<>();
+		this.pending = new AtomicInteger(1);
+		this.armed = new AtomicBoolean(false);
+		this.fired = new AtomicBoolean(false);
+		this.error = new AtomicReference<>();
+		this.continuationMode = ContinuationMode.SCHEDULED;
+	}
+
+	/**
+	 * Sets where callbacks passed to this tracker run, if not specified explicitly. Trackers
+	 * returned by {@link TaskTracker#then(ThrowingRunnable)} and
+	 * {@link TaskTracker#except(ThrowingConsumer)} inherit this setting, so it applies to
+	 * whole chains. Defaults to {@link ContinuationMode#SCHEDULED}.
+	 *
+	 * @param mode The default mode for callbacks
+	 * @return this
+	 */
+	public TaskTracker continuationMode(ContinuationMode mode) {
+		this.continuationMode = mode;
+		return this;
+	}
+
+	/**
+	 * Retrieves where callbacks passed to this tracker run, if not specified explicitly.
+	 *
+	 * @return The default mode for callbacks
+	 */
+	public ContinuationMode getContinuationMode() {
+		return continuationMode;
+	}
+
+	/**
+	 * Retrieves the scheduler this tracker belongs to.
+	 *
+	 * @return The scheduler tasks tracked by this tracker are from
+	 */
+	TaskScheduler scheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Checks if the tracker is done, which means all tracked tasks have completed and
+	 * the listeners have been fired.
+	 *
+	 * @return {@code true} if the tracker is done, {@code false} otherwise
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * Retrieves the error the tracker failed with, if any. If multiple tasks failed,
+	 * this is the first error reported.
+	 *
+	 * @return The error the tracker failed with or null, if no tracked task failed so far
+	 */
+	public Throwable getError() {
+		return error.get();
 	}
 
 	/**
-	 * Notifies the tracker that one of its tracked tasks failed.
+	 * Notifies the tracker that one of its tracked tasks failed. Tasks notify every
+	 * tracker tracking them exactly once, notifications about tasks which are not
+	 * tracked by this tracker or have been counted already are ignored.
 	 *
 	 * @param task  The task that failed
 	 * @param error The exception the task failed with
 	 */
 	public void notifyFailed(Task task, Throwable error) {
-		if (done) {
-			throw new IllegalStateException("Tried to notify TaskTracker which is done already");
-		}
-
-		synchronized (trackedTasks) {
-			// Check if the task even belongs to this tracker
-			if (trackedTasks.contains(task)) {
-				this.error = error;
-				trackedTasks.remove(task);
-
-				// Check if it was the last task
-				checkListeners();
-			}
+		if (task.claimNotification(this)) {
+			taskFinished(task, error);
 		}
 	}
 
 	/**
-	 * Notifies the tracker that one if its tracked tasks succeeded.
+	 * Notifies the tracker that one if its tracked tasks succeeded. Tasks notify every
+	 * tracker tracking them exactly once, notifications about tasks which are not
+	 * tracked by this tracker or have been counted already are ignored.
 	 *
 	 * @param task The task that succeeded
 	 */
 	public void notifyDone(Task task) {
+		if (task.claimNotification(this)) {
+			taskFinished(task, null);
+		}
+	}
+
+	/**
+	 * Counts a tracked task which finished. Called exactly once for every tracked task.
+	 *
+	 * @param task  The task which finished
+	 * @param error The error the task failed with or null, if it is done or has been cancelled
+	 */
+	void taskFinished(Task task, Throwable error) {
+		release(error);
+	}
+
+	/**
+	 * Adds a pending unit which is not backed by a task. The tracker will not complete
+	 * before the unit has been given back using {@link TaskTracker#release(Throwable)}.
+	 */
+	void reserve() {
 		if (done) {
-			throw new IllegalStateException("Tried to notify TaskTracker which is done already");
+			throw new IllegalStateException("Tried to reserve TaskTracker which was done already");
 		}
 
-		synchronized (trackedTasks) {
-			// Check if the task even belongs to this tracker
-			if (trackedTasks.contains(task)) {
-				trackedTasks.remove(task);
+		pending.incrementAndGet();
+	}
 
-				// Check if it was the last task
-				checkListeners();
-			}
+	/**
+	 * Gives back a pending unit, completing the tracker if it was the last one.
+	 *
+	 * @param error The error the unit failed with or null, if it succeeded
+	 */
+	void release(Throwable error) {
+		if (error != null) {
+			// The first failure wins
+			this.error.compareAndSet(null, error);
+		}
+
+		if (pending.decrementAndGet() == 0) {
+			fire();
 		}
 	}
 
 	/**
-	 * This function checks if there are no tasks left, and if so,
-	 * takes the appropriate actions.
+	 * Marks the tracker as done and fires all listeners in the order they have been added.
+	 * Only the first call has any effect.
 	 */
-	private void checkListeners() {
-		// Check if the tracker has been armed, if not,
-		// don't do anything
-		if (!armed) {
+	private void fire() {
+		if (!fired.compareAndSet(false, true)) {
 			return;
 		}
 
-		synchronized (trackedTasks) {
-			if (trackedTasks.size() == 0) {
-				synchronized (listeners) {
-					// The tracker is done since all tasks of it have run
-					done = true;
+		// The tracker is done since all tasks of it have run
+		done = true;
 
-					listeners.forEach(this::fireListener);
-				}
-			}
+		// Nothing is left to cancel
+		TrackedNode trackedHead = tracked.get();
+
+		if (trackedHead != CANCELLED) {
+			tracked.compareAndSet(trackedHead, null);
+		}
+
+		TaskTrackerListener head = listeners.getAndSet(FIRED);
+		TaskTrackerListener ordered = null;
+
+		// The stack has the newest listener on top, reverse it
+		while (head != null) {
+			TaskTrackerListener next = head.next;
+			head.next = ordered;
+			ordered = head;
+			head = next;
+		}
+
+		while (ordered != null) {
+			TaskTrackerListener next = ordered.next;
+			ordered.next = null;
+			ordered.fire(this);
+			ordered = next;
 		}
 	}
 
 	/**
-	 * Fires a tracker listener according to the state of this tracker.
+	 * Adds a listener which is fired once this tracker has completed. If the tracker
+	 * has completed already, the listener is fired right away.
 	 *
-	 * @param listener The listener to fire
+	 * @param listener The listener to add
 	 */
-	private void fireListener(TaskTrackerListener listener) {
-		synchronized (listener) {
-			if (listener.newTracker.done) {
-				// This should never happen, since we have a dummy task blocking
-				// the other tracker
-				throw new IllegalStateException("Dependent tracker is done already");
+	void addListener(TaskTrackerListener listener) {
+		while (true) {
+			TaskTrackerListener head = listeners.get();
+
+			if (head == FIRED) {
+				// if done, fire the listener right now
+				listener.fire(this);
+				return;
 			}
 
-			if (error == null) {
-				// All tasks completed successfully
-				if (listener.onSuccess != null) {
-					// If the callback is not null, schedule it
-					scheduler.schedule(
-							new UniversalRunnableTask("SuccessListener", listener.onSuccess), listener.newTracker);
-				}
+			// Discard disarmed listeners on top, usually left behind by waits which timed out
+			TaskTrackerListener below = head;
 
-				// Notify that the dummy task is done, so we no longer
-				// block the other tracker with it
-				listener.newTracker.notifyDone(dummyTask);
-			} else {
-				if (listener.onFail != null) {
-					// If the callback is not null, schedule it
-					scheduler.schedule(
-							new UniversalRunnableTask("SuccessListener",
-									(ThrowingRunnable<Throwable>) () -> listener.onFail.accept(error)),
-							listener.newTracker);
-					// Succeed the dummy task, it will be up to the callback
-					// to fail if the chain should be failed further
-					listener.newTracker.notifyDone(dummyTask);
-				} else {
-					// No callback has been supplied so fail the
-					// other tracker with our error
-					listener.newTracker.notifyFailed(dummyTask, error);
-				}
+			while (below != null && below.isDisarmed()) {
+				below = below.next;
+			}
+
+			listener.next = below;
+
+			if (listeners.compareAndSet(head, listener)) {
+				return;
 			}
 		}
 	}
@@ -227,37 +580,318 @@ public class TaskTracker {
 			throw new IllegalStateException("Tried to track new task with TaskTracker which was done already");
 		}
 
-		if (!trackedTasks.contains(toTrack) && !toTrack.isDone()) {
-			synchronized (trackedTasks) {
-				toTrack.nowTrackedBy(this);
-				trackedTasks.add(toTrack);
-			}
+		// Count the task before registering with it, it may complete any moment
+		pending.incrementAndGet();
+
+		if (!toTrack.nowTrackedBy(this)) {
+			// The task is done already or tracked by us already
+			release(null);
+		} else {
+			remember(toTrack, true);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Adds multiple tasks to track at once. All tasks are counted with a single update, so
+	 * this is cheaper than tracking them one by one. Tasks which are done already or tracked
+	 * by this tracker already are not counted.
+	 *
+	 * @param toTrack The tasks to track
+	 * @return this
+	 */
+	public TaskTracker trackAll(Collection<? extends Task> toTrack) {
+		if (done) {
+			throw new IllegalStateException("Tried to track new tasks with TaskTracker which was done already");
+		}
 
-			synchronized (trackedBy) {
-				trackedBy.forEach(tracker -> tracker.track(toTrack));
+		// Count all tasks before registering with them, any of them may complete any moment
+		pending.addAndGet(toTrack.size());
+		int untracked = 0;
+
+		for (Task task : toTrack) {
+			if (task.nowTrackedBy(this)) {
+				remember(task, true);
+			} else {
+				untracked++;
 			}
 		}
 
+		if (untracked != 0 && pending.addAndGet(-untracked) == 0) {
+			fire();
+		}
+
 		return this;
 	}
 
 	/**
-	 * Adds a tracker to track. This essentially means, that all tracked tasks
-	 * are inherited from the tracker.
+	 * Adds a tracker to track. The tracker is tracked as a whole, this tracker will
+	 * only complete once the supplied tracker has completed. If the supplied tracker
+	 * fails, this tracker also fails.
+	 *
+	 * <p>The supplied tracker may still be unarmed, in that case the dependency is deferred
+	 * until it has been armed: this tracker won't complete before the supplied tracker has
+	 * been armed and all of its tasks have run.
 	 *
-	 * @param tracker The tracker to inherit tasks from
+	 * @param tracker The tracker to wait for
 	 * @return this
 	 */
 	public TaskTracker track(TaskTracker tracker) {
-		synchronized (tracker.trackedBy) {
-			tracker.trackedBy.add(this);
+		// Listeners only fire once the tracker has been armed, so an unarmed tracker simply
+		// defers the dependency
+		reserve();
+		tracker.addListener(new DependentListener(this));
+		remember(tracker, true);
+		return this;
+	}
+
+	/**
+	 * Cancels everything tracked by this tracker, see {@link TaskTracker#cancel(boolean)}.
+	 */
+	public void cancel() {
+		cancel(false);
+	}
+
+	/**
+	 * Cancels everything tracked by this tracker, including tasks and trackers tracked later
+	 * on. Tasks are cancelled using {@link Task#cancel(boolean)}, so queued tasks are removed
+	 * right away. Tracked trackers are cancelled as a whole. This tracker fails with a
+	 * {@link CancellationException} once it completes, so only failure callbacks run. Does
+	 * nothing if the tracker is done already.
+	 *
+	 * @param mayInterruptIfRunning Whether the threads currently stepping tracked tasks should
+	 *                              be interrupted
+	 */
+	public void cancel(boolean mayInterruptIfRunning) {
+		if (done) {
+			return;
+		}
+
+		error.compareAndSet(null, new CancellationException("TaskTracker has been cancelled"));
+		TrackedNode node = tracked.getAndSet(CANCELLED);
+
+		if (node == CANCELLED) {
+			return;
 		}
 
-		synchronized (tracker.trackedTasks) {
-			tracker.trackedTasks.forEach(this::track);
+		while (node != null) {
+			cancel(node.tracked, mayInterruptIfRunning);
+			node = node.next;
 		}
+	}
 
-		return this;
+	/**
+	 * Cancels a task or tracker tracked by this tracker.
+	 *
+	 * @param toCancel              The task or tracker to cancel
+	 * @param mayInterruptIfRunning Whether the thread currently stepping a task should be interrupted
+	 */
+	private static void cancel(Object toCancel, boolean mayInterruptIfRunning) {
+		if (toCancel instanceof Task) {
+			((Task) toCancel).cancel(mayInterruptIfRunning);
+		} else {
+			((TaskTracker) toCancel).cancel(mayInterruptIfRunning);
+		}
+	}
+
+	/**
+	 * Remembers a task or tracker for cancelling it. If this tracker has been cancelled
+	 * already, it is cancelled right away instead.
+	 *
+	 * @param toRemember The task or tracker to remember
+	 * @param mayCompact Whether this call may shed finished entries from the stack
+	 */
+	void remember(Object toRemember, boolean mayCompact) {
+		while (true) {
+			TrackedNode head = tracked.get();
+
+			if (head == CANCELLED) {
+				cancel(toRemember, false);
+				return;
+			}
+
+			TrackedNode node = new TrackedNode(toRemember, head);
+
+			if (tracked.compareAndSet(head, node)) {
+				if (mayCompact && node.depth >= COMPACT_THRESHOLD && Integer.bitCount(node.depth) == 1) {
+					compact(node);
+				}
+
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sheds finished tasks and done trackers from the tracked stack. Since this only happens
+	 * whenever the stack doubled in size, remembering stays O(1) amortized.
+	 *
+	 * @param head The head of the stack as seen by the caller
+	 */
+	private void compact(TrackedNode head) {
+		// Take the whole stack, entries pushed in the meantime stay on the new one
+		if (!tracked.compareAndSet(head, null)) {
+			return;
+		}
+
+		for (TrackedNode node = head; node != null; node = node.next) {
+			Object entry = node.tracked;
+			boolean finished = entry instanceof Task ? ((Task) entry).isFinished() : ((TaskTracker) entry).isDone();
+
+			if (!finished) {
+				// Also cancels the entry, if we have been cancelled in the meantime
+				remember(entry, false);
+			}
+		}
+	}
+
+	/**
+	 * Claims one of the most recently tracked tasks which is still waiting in the queue, so a
+	 * runner awaiting this tracker can step it right away. Only the top of the tracked stack
+	 * is searched, which keeps repeated calls cheap for large trackers.
+	 *
+	 * @return The claimed task or null, if none of the searched tasks is queued
+	 */
+	Task claimQueued() {
+		TrackedNode node = tracked.get();
+
+		for (int i = 0; node != null && i < CLAIM_SEARCH_DEPTH; i++) {
+			if (node.tracked instanceof Task && ((Task) node.tracked).unqueue()) {
+				return (Task) node.tracked;
+			}
+
+			node = node.next;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Waits until this tracker has completed, which requires it to be armed. Called on a runner
+	 * of the scheduler of this tracker, the runner keeps stepping queued tasks while waiting,
+	 * so a task waiting for tasks it scheduled itself can't starve a small pool. Other threads
+	 * are parked until the tracker completes. Whether the tracker failed can be checked with
+	 * {@link TaskTracker#getError()} afterwards.
+	 *
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public void await() throws InterruptedException {
+		scheduler.await(this, -1);
+	}
+
+	/**
+	 * Waits until this tracker has completed or the timeout elapsed, see {@link TaskTracker#await()}.
+	 *
+	 * @param timeout The maximum time to wait, without any specific unit
+	 * @param unit    The unit of the timeout
+	 * @return True if the tracker completed, false if the timeout elapsed before
+	 * @throws InterruptedException If the thread is interrupted while waiting
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		return scheduler.await(this, Math.max(0, unit.toNanos(timeout)));
+	}
+
+	/**
+	 * Creates a future which completes once this tracker has completed. The future is
+	 * completed on the thread completing the tracker, which requires it to be armed.
+	 * Cancelling the future does not affect the tracker.
+	 *
+	 * @return A future completing with null or exceptionally, if the tracker failed
+	 */
+	public CompletableFuture<?> toCompletableFuture() {
+		CompletableFuture<Object> future = new CompletableFuture<>();
+		addListener(new FutureListener<>(future, null));
+		return future;
+	}
+
+	/**
+	 * Creates a tracker which completes once a future has completed. No runner is occupied
+	 * while waiting for the future.
+	 *
+	 * @param scheduler The scheduler to run continuations of the tracker on
+	 * @param future    The future to wait for
+	 * @param <T>       The type of the value of the future
+	 * @return The armed tracker carrying the value of the future
+	 */
+	public static <T> ValueTracker<T> fromCompletableFuture(TaskScheduler scheduler, CompletionStage<? extends T> future) {
+		ValueTracker<T> tracker = new ValueTracker<>(scheduler, null);
+
+		// Released by the future once it completed
+		tracker.reserve();
+
+		future.whenComplete((value, error) -> {
+			if (error instanceof CompletionException && error.getCause() != null) {
+				// Failures of dependent stages are wrapped
+				error = error.getCause();
+			}
+
+			tracker.complete(value, error);
+		});
+
+		tracker.arm();
+		return tracker;
+	}
+
+	/**
+	 * Creates a tracker which succeeds once all tasks succeeded and fails as soon as one of
+	 * them fails. The tasks which have not finished by then are cancelled and interrupted,
+	 * the tracker completes without waiting for them. Their other trackers fail with a
+	 * {@link CancellationException}. Cancelled tasks count as failed, with the error they
+	 * have been aborted with, if any.
+	 *
+	 * @param scheduler The scheduler the tasks are from
+	 * @param tasks     The tasks to combine, they have to be scheduled separately
+	 * @return The armed tracker
+	 */
+	public static TaskTracker allOf(TaskScheduler scheduler, Collection<? extends Task> tasks) {
+		return new CombinedTracker<>(scheduler, tasks, CombinedTracker.ALL, true).start();
+	}
+
+	/**
+	 * Creates a tracker which completes like the first of the tasks to finish, no matter if
+	 * it succeeded or failed. The other tasks are cancelled and interrupted, see
+	 * {@link TaskTracker#allOf(TaskScheduler, Collection)}.
+	 *
+	 * @param scheduler The scheduler the tasks are from
+	 * @param tasks     The tasks to race, they have to be scheduled separately
+	 * @param <T>       The type of the tasks
+	 * @return The armed tracker carrying the first task to finish, if it succeeded
+	 * @throws IllegalArgumentException If no tasks are given
+	 */
+	public static <T extends Task> ValueTracker<T> anyOf(TaskScheduler scheduler, Collection<? extends T> tasks) {
+		return new CombinedTracker<T>(scheduler, tasks, 1, true).start();
+	}
+
+	/**
+	 * Creates a tracker which succeeds once one of the tasks succeeded and only fails if all
+	 * of them failed, with the first error reported. The other tasks are cancelled and
+	 * interrupted once one succeeded, see {@link TaskTracker#allOf(TaskScheduler, Collection)}.
+	 *
+	 * @param scheduler The scheduler the tasks are from
+	 * @param tasks     The tasks to race, they have to be scheduled separately
+	 * @param <T>       The type of the tasks
+	 * @return The armed tracker carrying the first task to succeed
+	 * @throws IllegalArgumentException If no tasks are given
+	 */
+	public static <T extends Task> ValueTracker<T> firstSuccessful(TaskScheduler scheduler, Collection<? extends T> tasks) {
+		return new CombinedTracker<T>(scheduler, tasks, 1, false).start();
+	}
+
+	/**
+	 * Creates a tracker which succeeds once a given amount of the tasks succeeded and fails
+	 * as soon as that amount can't be reached anymore, with the first error reported. The
+	 * other tasks are cancelled and interrupted once the outcome is decided, see
+	 * {@link TaskTracker#allOf(TaskScheduler, Collection)}.
+	 *
+	 * @param scheduler The scheduler the tasks are from
+	 * @param count     The amount of tasks which have to succeed
+	 * @param tasks     The tasks to combine, they have to be scheduled separately
+	 * @return The armed tracker
+	 * @throws IllegalArgumentException If the count is negative or exceeds the amount of tasks
+	 */
+	public static TaskTracker atLeast(TaskScheduler scheduler, int count, Collection<? extends Task> tasks) {
+		return new CombinedTracker<>(scheduler, tasks, count, false).start();
 	}
 
 	/**
@@ -268,8 +902,11 @@ public class TaskTracker {
 	 * @return this
 	 */
 	public TaskTracker arm() {
-		armed = true;
-		checkListeners();
+		if (armed.compareAndSet(false, true)) {
+			// Give back the unit which kept the tracker from firing early
+			release(null);
+		}
+
 		return this;
 	}
 
@@ -282,7 +919,7 @@ public class TaskTracker {
 	 * @return The new tracker of the operation, it is armed already
 	 */
 	public TaskTracker then(ThrowingRunnable<Throwable> listener) {
-		return then(listener, false);
+		return then(listener, continuationMode, false);
 	}
 
 	/**
@@ -295,28 +932,34 @@ public class TaskTracker {
 	 * @return The new tracker of the operation, armed already when noArm is false
 	 */
 	public TaskTracker then(ThrowingRunnable<Throwable> listener, boolean noArm) {
-		TaskTracker tracker = new TaskTracker(scheduler);
-		tracker.track(dummyTask);
-
-		TaskTrackerListener trackerListener = new TaskTrackerListener(listener, null, tracker);
-
-		// Synchronize on listeners
-		synchronized (listeners) {
-			if (done) {
-				// if done, fire the listener right now
-				fireListener(trackerListener);
-			} else {
-				// else schedule it for later
-				listeners.add(trackerListener);
-			}
-		}
+		return then(listener, continuationMode, noArm);
+	}
 
-		// Arm the tracker of noArm was false
-		if (!noArm) {
-			tracker.arm();
-		}
+	/**
+	 * Chains an operation which should be executed when this tracker
+	 * completed. If the tracker has completed already, the listener
+	 * runs immediately.
+	 *
+	 * @param listener The listener to execute when this tracker completed
+	 * @param mode     Where to run the listener
+	 * @return The new tracker of the operation, it is armed already
+	 */
+	public TaskTracker then(ThrowingRunnable<Throwable> listener, ContinuationMode mode) {
+		return then(listener, mode, false);
+	}
 
-		return tracker;
+	/**
+	 * Chains an operation which should be executed when this tracker
+	 * completed. If the tracker has completed already, the listener
+	 * runs immediately.
+	 *
+	 * @param listener The listener to execute when this tracker completed
+	 * @param mode     Where to run the listener
+	 * @param noArm    If true, the returned tracker will not be armed
+	 * @return The new tracker of the operation, armed already when noArm is false
+	 */
+	public TaskTracker then(ThrowingRunnable<Throwable> listener, ContinuationMode mode, boolean noArm) {
+		return chain(listener, null, mode, noArm);
 	}
 
 	/**
@@ -328,7 +971,7 @@ public class TaskTracker {
 	 * @return The new tracker of the operation, it is armed already
 	 */
 	public TaskTracker except(ThrowingConsumer<Throwable, Throwable> listener) {
-		return except(listener, false);
+		return except(listener, continuationMode, false);
 	}
 
 	/**
@@ -341,22 +984,61 @@ public class TaskTracker {
 	 * @return The new tracker of the operation, armed already when noArm is false
 	 */
 	public TaskTracker except(ThrowingConsumer<Throwable, Throwable> listener, boolean noArm) {
-		TaskTracker tracker = new TaskTracker(scheduler);
-		tracker.track(dummyTask);
+		return except(listener, continuationMode, noArm);
+	}
 
-		TaskTrackerListener trackerListener = new TaskTrackerListener(null, listener, tracker);
+	/**
+	 * Chains an operation which should be executed when this tracker
+	 * failed. If the tracker has failed already, the listener
+	 * runs immediately.
+	 *
+	 * @param listener The listener to execute when this tracker failed
+	 * @param mode     Where to run the listener
+	 * @return The new tracker of the operation, it is armed already
+	 */
+	public TaskTracker except(ThrowingConsumer<Throwable, Throwable> listener, ContinuationMode mode) {
+		return except(listener, mode, false);
+	}
 
-		// Synchronize on listeners
-		synchronized (listeners) {
-			if (done) {
-				// if done, fire the listener right now
-				fireListener(trackerListener);
-			} else {
-				// else schedule it for later
-				listeners.add(trackerListener);
-			}
+	/**
+	 * Chains an operation which should be executed when this tracker
+	 * failed. If the tracker has failed already, the listener
+	 * runs immediately.
+	 *
+	 * @param listener The listener to execute when this tracker failed
+	 * @param mode     Where to run the listener
+	 * @param noArm    If true, the returned tracker will not be armed
+	 * @return The new tracker of the operation, armed already when noArm is false
+	 */
+	public TaskTracker except(ThrowingConsumer<Throwable, Throwable> listener, ContinuationMode mode, boolean noArm) {
+		return chain(null, listener, mode, noArm);
+	}
+
+	/**
+	 * Creates the tracker of a chained operation and registers the listener running it.
+	 *
+	 * @param onSuccess The callback to execute in case this tracker succeeded
+	 * @param onFail    The callback to execute in case this tracker failed
+	 * @param mode      Where to run the callbacks
+	 * @param noArm     If true, the returned tracker will not be armed
+	 * @return The new tracker of the operation, armed already when noArm is false
+	 */
+	private TaskTracker chain(
+			ThrowingRunnable<Throwable> onSuccess,
+			ThrowingConsumer<Throwable, Throwable> onFail,
+			ContinuationMode mode,
+			boolean noArm
+	) {
+		TaskTracker tracker = new TaskTracker(scheduler);
+		Task task = null;
+
+		if (onSuccess != null) {
+			// Continuations are latency sensitive so they go ahead of regular work
+			task = new UniversalRunnableTask("SuccessListener", onSuccess, TaskPriority.HIGH);
 		}
 
+		addContinuation(task, onFail, tracker, mode);
+
 		// Arm the tracker of noArm was false
 		if (!noArm) {
 			tracker.arm();
@@ -364,4 +1046,26 @@ public class TaskTracker {
 
 		return tracker;
 	}
+
+	/**
+	 * Registers a continuation which runs once this tracker completed. The target tracker
+	 * tracks the continuation and can't complete before this tracker has completed. It
+	 * inherits the default continuation mode of this tracker.
+	 *
+	 * @param onSuccess The task to run in case this tracker succeeded
+	 * @param onFail    The callback to execute in case this tracker failed
+	 * @param target    The tracker to track the continuation with
+	 * @param mode      Where to run the continuation
+	 */
+	void addContinuation(
+			Task onSuccess,
+			ThrowingConsumer<Throwable, Throwable> onFail,
+			TaskTracker target,
+			ContinuationMode mode
+	) {
+		target.continuationMode = continuationMode;
+		target.reserve();
+
+		addListener(new ContinuationListener(onSuccess, onFail, target, mode));
+	}
 }
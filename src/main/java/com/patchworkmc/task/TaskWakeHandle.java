@@ -0,0 +1,107 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Handle {@link Task}s can suspend themselves on until an external condition is met, see
+ * {@link Task#suspend(TaskWakeHandle)}. Once woken up, the handle stays signalled until it
+ * is reset, so tasks suspending on a signalled handle are resumed right away.
+ */
+public class TaskWakeHandle {
+	private final Set<Suspension> waiters;
+	private boolean signalled;
+
+	/**
+	 * Creates a new, not signalled {@link TaskWakeHandle}.
+	 */
+	public TaskWakeHandle() {
+		this.waiters = Collections.newSetFromMap(new IdentityHashMap<>());
+	}
+
+	/**
+	 * Signals the handle and resumes all tasks suspended on it.
+	 */
+	public void wake() {
+		List<Suspension> toResume;
+
+		synchronized (this) {
+			signalled = true;
+
+			if (waiters.isEmpty()) {
+				return;
+			}
+
+			toResume = new ArrayList<>(waiters);
+			waiters.clear();
+		}
+
+		// Resume outside of the lock, this hands the tasks back to their schedulers
+		for (Suspension suspension : toResume) {
+			suspension.resume();
+		}
+	}
+
+	/**
+	 * Clears the signal of the handle, so tasks suspending on it will wait again.
+	 */
+	public synchronized void reset() {
+		signalled = false;
+	}
+
+	/**
+	 * Checks wether the handle is currently signalled.
+	 *
+	 * @return {@code true} if the handle has been woken up and not reset since, {@code false} otherwise
+	 */
+	public synchronized boolean isSignalled() {
+		return signalled;
+	}
+
+	/**
+	 * Adds a suspended task to the waiters of this handle.
+	 *
+	 * @param suspension The suspension of the task
+	 * @return {@code true} if the task now waits for the handle, {@code false} if the handle
+	 * is signalled already and the task should not be suspended at all
+	 */
+	synchronized boolean add(Suspension suspension) {
+		if (signalled) {
+			return false;
+		}
+
+		waiters.add(suspension);
+		return true;
+	}
+
+	/**
+	 * Removes a suspended task from the waiters of this handle, used when its timeout expired.
+	 *
+	 * @param suspension The suspension of the task
+	 */
+	synchronized void remove(Suspension suspension) {
+		waiters.remove(suspension);
+	}
+}
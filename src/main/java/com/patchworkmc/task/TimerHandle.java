@@ -0,0 +1,39 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+/**
+ * Handle of a pending timer of a {@link TaskScheduler}.
+ */
+public interface TimerHandle {
+	/**
+	 * Cancels the timer. Does nothing if the timer has fired or been cancelled already.
+	 *
+	 * @return {@code true} if this call cancelled the timer, {@code false} otherwise
+	 */
+	boolean cancel();
+
+	/**
+	 * Checks wether the timer has been cancelled.
+	 *
+	 * @return {@code true} if the timer has been cancelled, {@code false} otherwise
+	 */
+	boolean isCancelled();
+}
@@ -28,6 +28,7 @@ import com.patchworkmc.function.ThrowingRunnable;
 public class UniversalRunnableTask extends Task {
 	private final String name;
 	private final ThrowingRunnable<Throwable> runnable;
+	private final TaskPriority priority;
 
 	/**
 	 * Creates a new {@link UniversalRunnableTask} with the specified name and runnable.
@@ -36,8 +37,20 @@ public class UniversalRunnableTask extends Task {
 	 * @param runnable The runnable to run as the task itself
 	 */
 	public UniversalRunnableTask(String name, ThrowingRunnable<Throwable> runnable) {
+		this(name, runnable, TaskPriority.NORMAL);
+	}
+
+	/**
+	 * Creates a new {@link UniversalRunnableTask} with the specified name, runnable and priority.
+	 *
+	 * @param name     The name of the task
+	 * @param runnable The runnable to run as the task itself
+	 * @param priority The priority class of the task
+	 */
+	public UniversalRunnableTask(String name, ThrowingRunnable<Throwable> runnable, TaskPriority priority) {
 		this.name = name;
 		this.runnable = runnable;
+		this.priority = priority;
 	}
 
 	/**
@@ -51,6 +64,7 @@ public class UniversalRunnableTask extends Task {
 		// We can't directly assign the runnable, but we can make a
 		// method reference out of it
 		this.runnable = runnable::run;
+		this.priority = TaskPriority.NORMAL;
 	}
 
 	@Override
@@ -64,4 +78,9 @@ public class UniversalRunnableTask extends Task {
 	public String name() {
 		return name;
 	}
+
+	@Override
+	public TaskPriority priority() {
+		return priority;
+	}
 }
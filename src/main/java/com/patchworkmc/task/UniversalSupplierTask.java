@@ -0,0 +1,73 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import com.patchworkmc.logging.Logger;
+import com.patchworkmc.function.ThrowingSupplier;
+
+/**
+ * {@link ValueTask} for {@link ThrowingSupplier}s.
+ *
+ * @param <T> The type of the value yielded by the supplier
+ */
+public class UniversalSupplierTask<T> extends ValueTask<T> {
+	private final String name;
+	private final ThrowingSupplier<? extends T, Throwable> supplier;
+	private final TaskPriority priority;
+
+	/**
+	 * Creates a new {@link UniversalSupplierTask} with the specified name and supplier.
+	 *
+	 * @param name     The name of the task
+	 * @param supplier The supplier to compute the value of the task with
+	 */
+	public UniversalSupplierTask(String name, ThrowingSupplier<? extends T, Throwable> supplier) {
+		this(name, supplier, TaskPriority.NORMAL);
+	}
+
+	/**
+	 * Creates a new {@link UniversalSupplierTask} with the specified name, supplier and priority.
+	 *
+	 * @param name     The name of the task
+	 * @param supplier The supplier to compute the value of the task with
+	 * @param priority The priority class of the task
+	 */
+	public UniversalSupplierTask(String name, ThrowingSupplier<? extends T, Throwable> supplier, TaskPriority priority) {
+		this.name = name;
+		this.supplier = supplier;
+		this.priority = priority;
+	}
+
+	@Override
+	protected T compute(Logger logger) throws Throwable {
+		logger.debug("Running universal supplier.");
+		return supplier.get();
+	}
+
+	@Override
+	public String name() {
+		return name;
+	}
+
+	@Override
+	public TaskPriority priority() {
+		return priority;
+	}
+}
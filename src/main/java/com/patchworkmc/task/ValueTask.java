@@ -0,0 +1,59 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import com.patchworkmc.logging.Logger;
+
+/**
+ * Base class for tasks which compute a value in a single step. Scheduling a value task using
+ * {@link TaskScheduler#schedule(ValueTask)} yields a {@link ValueTracker} carrying the value
+ * to dependent operations.
+ *
+ * @param <T> The type of the value computed by the task
+ */
+public abstract class ValueTask<T> extends Task {
+	// Published by the volatile done flag of the task
+	private T value;
+
+	/**
+	 * Computes the value of the task.
+	 *
+	 * @param logger The logger the task should use for task operation logging.
+	 * @return The computed value
+	 * @throws Throwable If an error in the task occurs. The task will then be marked as failed
+	 *                   with the error thrown and fail every task operation it belongs to
+	 */
+	protected abstract T compute(Logger logger) throws Throwable;
+
+	@Override
+	protected final boolean run(Logger logger) throws Throwable {
+		value = compute(logger);
+		return true;
+	}
+
+	/**
+	 * Retrieves the value computed by the task.
+	 *
+	 * @return The computed value or null, if the task is not done or failed
+	 */
+	public final T getValue() {
+		return isDone() ? value : null;
+	}
+}
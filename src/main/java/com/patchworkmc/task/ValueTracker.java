@@ -0,0 +1,298 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+import com.patchworkmc.function.ThrowingBiFunction;
+import com.patchworkmc.function.ThrowingFunction;
+
+/**
+ * {@link TaskTracker} carrying the value of the operation it tracks. Values are handed to
+ * dependent operations by reference once the tracker completed, the operators
+ * {@link ValueTracker#map(ThrowingFunction)}, {@link ValueTracker#flatMap(ThrowingFunction)} and
+ * {@link ValueTracker#combine(ValueTracker, ThrowingBiFunction)} build dataflow graphs whose
+ * independent branches run in parallel.
+ *
+ * @param <T> The type of the value carried by the tracker
+ */
+public class ValueTracker<T> extends TaskTracker {
+	/**
+	 * Listener completing a tracker with the value of another one.
+	 *
+	 * @param <T> The type of the value handed over
+	 */
+	static class ForwardingListener<T> extends TaskTrackerListener {
+		private final ValueTracker<? extends T> source;
+		private final ValueTracker<T> target;
+
+		/**
+		 * Creates a new {@link ForwardingListener}.
+		 *
+		 * @param source The tracker to take the value from
+		 * @param target The tracker to complete
+		 */
+		ForwardingListener(ValueTracker<? extends T> source, ValueTracker<T> target) {
+			this.source = source;
+			this.target = target;
+		}
+
+		@Override
+		void fire(TaskTracker completed) {
+			target.complete(source.value, source.getError());
+		}
+	}
+
+	/**
+	 * Listener waiting for the tracker yielded by a flat mapping function.
+	 *
+	 * @param <T> The type of the value of the yielded tracker
+	 */
+	static class FlatteningListener<T> extends TaskTrackerListener {
+		private final ValueTracker<? extends ValueTracker<? extends T>> source;
+		private final ValueTracker<T> target;
+
+		/**
+		 * Creates a new {@link FlatteningListener}.
+		 *
+		 * @param source The tracker of the mapping function
+		 * @param target The tracker to complete with the value of the yielded tracker
+		 */
+		FlatteningListener(ValueTracker<? extends ValueTracker<? extends T>> source, ValueTracker<T> target) {
+			this.source = source;
+			this.target = target;
+		}
+
+		@Override
+		void fire(TaskTracker completed) {
+			Throwable error = source.getError();
+
+			if (error != null) {
+				target.complete(null, error);
+				return;
+			}
+
+			ValueTracker<? extends T> yielded = source.value;
+
+			if (yielded == null) {
+				target.complete(null, new NullPointerException("Flat mapping function yielded null instead of a tracker"));
+				return;
+			}
+
+			yielded.addListener(new ForwardingListener<>(yielded, target));
+		}
+	}
+
+	private final ValueTask<? extends T> producer;
+
+	// Published by completing the tracker
+	private T value;
+
+	/**
+	 * Creates a new {@link ValueTracker}.
+	 *
+	 * @param scheduler The task scheduler tasks tracked by this tracker are from
+	 * @param producer  The task yielding the value of the tracker or null, if the value
+	 *                  is supplied using {@link ValueTracker#complete(Object, Throwable)}
+	 */
+	ValueTracker(TaskScheduler scheduler, ValueTask<? extends T> producer) {
+		super(scheduler);
+		this.producer = producer;
+	}
+
+	@Override
+	void taskFinished(Task task, Throwable error) {
+		if (task == producer && error == null) {
+			if (producer.isCanceled()) {
+				// Cancelled tasks inform their trackers as if they were done, but
+				// they never produced a value dependents could work with
+				error = new CancellationException("Task producing the value has been cancelled");
+			} else {
+				// Take the value before completing, dependents read it right away
+				value = producer.getValue();
+			}
+		}
+
+		super.taskFinished(task, error);
+	}
+
+	/**
+	 * Sets the value of the tracker and gives back the reservation made for it.
+	 *
+	 * @param value The value of the tracker
+	 * @param error The error the value could not be computed with or null, if it succeeded
+	 */
+	void complete(T value, Throwable error) {
+		this.value = value;
+		release(error);
+	}
+
+	/**
+	 * Retrieves the value carried by the tracker.
+	 *
+	 * @return The value or null, if the tracker failed
+	 * @throws IllegalStateException If the tracker is not done yet
+	 */
+	public T getValue() {
+		if (!isDone()) {
+			throw new IllegalStateException("Tried to get value of ValueTracker which is not done yet");
+		}
+
+		return value;
+	}
+
+	/**
+	 * Creates a future which completes with the value of this tracker once it has
+	 * completed. Cancelling the future does not affect the tracker.
+	 *
+	 * @return A future completing with the value of the tracker or exceptionally,
+	 * if the tracker failed
+	 */
+	@Override
+	public CompletableFuture<T> toCompletableFuture() {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		addListener(new FutureListener<>(future, this));
+		return future;
+	}
+
+	/**
+	 * Maps the value of this tracker once it is available. If this tracker fails, the
+	 * returned tracker fails with the same error.
+	 *
+	 * @param function The function to apply to the value
+	 * @param <R>      The type of the mapped value
+	 * @return The armed tracker carrying the mapped value
+	 */
+	public <R> ValueTracker<R> map(ThrowingFunction<? super T, ? extends R, Throwable> function) {
+		return map(function, getContinuationMode());
+	}
+
+	/**
+	 * Maps the value of this tracker once it is available. If this tracker fails, the
+	 * returned tracker fails with the same error.
+	 *
+	 * @param function The function to apply to the value
+	 * @param mode     Where to run the function
+	 * @param <R>      The type of the mapped value
+	 * @return The armed tracker carrying the mapped value
+	 */
+	public <R> ValueTracker<R> map(ThrowingFunction<? super T, ? extends R, Throwable> function, ContinuationMode mode) {
+		ValueTask<R> task = new UniversalSupplierTask<>("Map", () -> function.apply(value), TaskPriority.HIGH);
+		ValueTracker<R> tracker = new ValueTracker<>(scheduler(), task);
+
+		addContinuation(task, null, tracker, mode);
+		tracker.arm();
+
+		return tracker;
+	}
+
+	/**
+	 * Maps the value of this tracker to another operation once it is available. The returned
+	 * tracker completes with the value of the tracker yielded by the function, which has to
+	 * be armed. If any of them fails, the returned tracker fails with the same error.
+	 *
+	 * @param function The function starting the operation
+	 * @param <R>      The type of the value of the operation
+	 * @return The armed tracker carrying the value of the operation
+	 */
+	public <R> ValueTracker<R> flatMap(ThrowingFunction<? super T, ? extends ValueTracker<? extends R>, Throwable> function) {
+		return flatMap(function, getContinuationMode());
+	}
+
+	/**
+	 * Maps the value of this tracker to another operation once it is available. The returned
+	 * tracker completes with the value of the tracker yielded by the function, which has to
+	 * be armed. If any of them fails, the returned tracker fails with the same error.
+	 *
+	 * @param function The function starting the operation
+	 * @param mode     Where to run the function
+	 * @param <R>      The type of the value of the operation
+	 * @return The armed tracker carrying the value of the operation
+	 */
+	public <R> ValueTracker<R> flatMap(
+			ThrowingFunction<? super T, ? extends ValueTracker<? extends R>, Throwable> function,
+			ContinuationMode mode
+	) {
+		ValueTracker<R> tracker = new ValueTracker<>(scheduler(), null);
+		tracker.continuationMode(getContinuationMode());
+
+		// Released once the yielded tracker has completed
+		tracker.reserve();
+
+		ValueTracker<? extends ValueTracker<? extends R>> mapped = map(function, mode);
+		mapped.addListener(new FlatteningListener<>(mapped, tracker));
+		tracker.arm();
+
+		return tracker;
+	}
+
+	/**
+	 * Combines the value of this tracker with the value of another one, once both are
+	 * available. Both are computed independently of each other. If any of them fails,
+	 * the returned tracker fails with the same error.
+	 *
+	 * @param other    The tracker to combine the value with, has to be armed
+	 * @param function The function combining both values
+	 * @param <U>      The type of the value of the other tracker
+	 * @param <R>      The type of the combined value
+	 * @return The armed tracker carrying the combined value
+	 */
+	public <U, R> ValueTracker<R> combine(
+			ValueTracker<U> other,
+			ThrowingBiFunction<? super T, ? super U, ? extends R, Throwable> function
+	) {
+		return combine(other, function, getContinuationMode());
+	}
+
+	/**
+	 * Combines the value of this tracker with the value of another one, once both are
+	 * available. Both are computed independently of each other. If any of them fails,
+	 * the returned tracker fails with the same error.
+	 *
+	 * @param other    The tracker to combine the value with, has to be armed
+	 * @param function The function combining both values
+	 * @param mode     Where to run the function
+	 * @param <U>      The type of the value of the other tracker
+	 * @param <R>      The type of the combined value
+	 * @return The armed tracker carrying the combined value
+	 */
+	public <U, R> ValueTracker<R> combine(
+			ValueTracker<U> other,
+			ThrowingBiFunction<? super T, ? super U, ? extends R, Throwable> function,
+			ContinuationMode mode
+	) {
+		ValueTask<R> task = new UniversalSupplierTask<>("Combine",
+				() -> function.apply(value, other.value), TaskPriority.HIGH);
+		ValueTracker<R> tracker = new ValueTracker<>(scheduler(), task);
+
+		// Join both trackers, each of them counts as a single unit
+		TaskTracker joined = new TaskTracker(scheduler())
+				.continuationMode(getContinuationMode())
+				.track(this)
+				.track(other)
+				.arm();
+
+		joined.addContinuation(task, null, tracker, mode);
+		tracker.arm();
+
+		return tracker;
+	}
+}
@@ -0,0 +1,165 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.patchworkmc.logging.Logger;
+
+/**
+ * Steps blocking tasks of a {@link TaskScheduler} on virtual threads, see
+ * {@link TaskScheduler#virtualThreads(boolean)}. Every blocking category has its own FIFO
+ * queue and runs at most as many virtual threads as its limit allows. A virtual thread steps
+ * tasks of its category until the queue is empty and terminates then, so idle categories
+ * don't keep any threads around.
+ */
+class VirtualRunners {
+	private final TaskScheduler scheduler;
+	private final Logger logger;
+	private final Map<String, Integer> limits;
+	private final ConcurrentHashMap<String, Category> categories;
+	private final Set<Worker> workers;
+
+	/**
+	 * Creates a new {@link VirtualRunners}.
+	 *
+	 * @param scheduler The scheduler owning the blocking tasks
+	 * @param logger    The logger to derive the loggers of the categories from
+	 * @param limits    The concurrency limits of the categories, categories without one use
+	 *                  {@link TaskScheduler#DEFAULT_BLOCKING_LIMIT}
+	 */
+	VirtualRunners(TaskScheduler scheduler, Logger logger, Map<String, Integer> limits) {
+		this.scheduler = scheduler;
+		this.logger = logger;
+		this.limits = new ConcurrentHashMap<>(limits);
+		this.categories = new ConcurrentHashMap<>();
+		this.workers = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Queues a blocking task in its category, starting a virtual thread if the category
+	 * is below its limit.
+	 *
+	 * @param task The task to queue
+	 */
+	void dispatch(Task task) {
+		Category category = categories.computeIfAbsent(task.blockingCategory(), Category::new);
+		category.tasks.add(task);
+		spawn(category);
+	}
+
+	/**
+	 * Interrupts all virtual threads currently stepping tasks.
+	 */
+	void interruptAll() {
+		for (Worker worker : workers) {
+			worker.thread.interrupt();
+		}
+	}
+
+	/**
+	 * Retrieves the virtual threads currently stepping tasks, for the watchdog of the scheduler.
+	 *
+	 * @return A live view of the running workers
+	 */
+	Collection<Worker> workers() {
+		return workers;
+	}
+
+	// Starts a virtual thread for the category if it has work and is below its limit
+	private void spawn(Category category) {
+		while (!category.tasks.isEmpty()) {
+			int active = category.active.get();
+
+			if (active >= category.limit) {
+				// One of the running threads picks the task up
+				return;
+			}
+
+			if (category.active.compareAndSet(active, active + 1)) {
+				VirtualThreads.start("TaskSchedulerVirtual(" + category.name + ")", () -> work(category));
+				return;
+			}
+		}
+	}
+
+	// Steps tasks of the category until its queue is empty
+	private void work(Category category) {
+		Worker worker = new Worker(Thread.currentThread());
+		workers.add(worker);
+
+		try {
+			Task task;
+
+			while ((task = category.tasks.poll()) != null) {
+				scheduler.runVirtual(worker, task, category.logger);
+			}
+		} finally {
+			workers.remove(worker);
+			category.active.decrementAndGet();
+		}
+
+		// A task might have been queued after the last poll, while this thread still counted
+		spawn(category);
+	}
+
+	/**
+	 * A virtual thread stepping blocking tasks, timed by the watchdog like a runner.
+	 */
+	static class Worker {
+		final Thread thread;
+		volatile Task task;
+
+		// Time the current step started at or 0 if the worker is between steps, only
+		// maintained by schedulers with a watchdog
+		volatile long stepStartedAt;
+
+		// Start of the last step the watchdog handled, only accessed by the watchdog
+		long reportedStepStart;
+
+		Worker(Thread thread) {
+			this.thread = thread;
+		}
+	}
+
+	/**
+	 * Queue and state of a single blocking category.
+	 */
+	private class Category {
+		private final String name;
+		private final int limit;
+		private final Logger logger;
+		private final ConcurrentLinkedQueue<Task> tasks;
+		private final AtomicInteger active;
+
+		Category(String name) {
+			this.name = name;
+			this.limit = limits.getOrDefault(name, TaskScheduler.DEFAULT_BLOCKING_LIMIT);
+			this.logger = VirtualRunners.this.logger.sub("Blocking(" + name + ")");
+			this.tasks = new ConcurrentLinkedQueue<>();
+			this.active = new AtomicInteger();
+		}
+	}
+}
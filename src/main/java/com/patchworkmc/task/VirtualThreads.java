@@ -0,0 +1,55 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+/**
+ * Access to virtual threads, which are only available on Java 21 and newer. This is the
+ * Java 8 variant, which reports them as unsupported and starts platform threads instead.
+ * The multi-release jar replaces it with the variant in {@code src/main/java21} on newer JDKs.
+ */
+class VirtualThreads {
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Checks wether virtual threads can be started on the running JDK.
+	 *
+	 * @return True if virtual threads are supported, false otherwise
+	 */
+	static boolean isSupported() {
+		return false;
+	}
+
+	/**
+	 * Starts a new daemon platform thread, since virtual threads are not available.
+	 *
+	 * @param name     The name of the thread
+	 * @param runnable The operation to run on the thread
+	 * @return The started thread
+	 */
+	static Thread start(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+
+		// Virtual threads never keep the JVM alive either
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+}
@@ -0,0 +1,189 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Growable Chase-Lev deque. The owning runner pushes and pops at the bottom without
+ * contention, other runners steal from the top using a single CAS.
+ */
+class WorkStealingDeque {
+	private static final int INITIAL_CAPACITY = 64;
+
+	// Index of the oldest element, only ever incremented (by stealing or popping the last element)
+	private final AtomicLong top;
+	// Index one above the newest element, only written by the owner
+	private volatile long bottom;
+	private volatile AtomicReferenceArray<Task> array;
+
+	/**
+	 * Creates a new, empty {@link WorkStealingDeque}.
+	 */
+	WorkStealingDeque() {
+		this.top = new AtomicLong();
+		this.array = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Pushes a task onto the bottom of the deque. May only be called by the owner.
+	 *
+	 * @param task The task to push
+	 */
+	void push(Task task) {
+		long b = bottom;
+		long t = top.get();
+		AtomicReferenceArray<Task> a = array;
+
+		if (b - t >= a.length() - 1) {
+			// Full, grow before writing
+			a = grow(a, t, b);
+		}
+
+		a.set((int) b & (a.length() - 1), task);
+
+		// Publishing the new bottom makes the task visible to thieves
+		bottom = b + 1;
+	}
+
+	/**
+	 * Pops the newest task from the bottom of the deque. May only be called by the owner.
+	 *
+	 * @return The popped task or null, if the deque is empty
+	 */
+	Task pop() {
+		long b = bottom - 1;
+		AtomicReferenceArray<Task> a = array;
+
+		// Reserve the bottom element before looking at top, thieves
+		// will see the reservation and back off
+		bottom = b;
+		long t = top.get();
+
+		if (t > b) {
+			// Empty, restore bottom
+			bottom = b + 1;
+			return null;
+		}
+
+		int index = (int) b & (a.length() - 1);
+		Task task = a.get(index);
+
+		if (t == b) {
+			// Last element, race against thieves for it
+			if (!top.compareAndSet(t, t + 1)) {
+				task = null;
+			}
+
+			bottom = b + 1;
+			return task;
+		}
+
+		// Thieves can't reach this index anymore, so clear it to not leak the task
+		a.set(index, null);
+		return task;
+	}
+
+	/**
+	 * Steals the oldest task from the top of the deque. May be called by any thread.
+	 *
+	 * @return The stolen task or null, if the deque was empty or the steal lost a race
+	 */
+	Task steal() {
+		long t = top.get();
+		long b = bottom;
+
+		if (t >= b) {
+			return null;
+		}
+
+		AtomicReferenceArray<Task> a = array;
+		int index = (int) t & (a.length() - 1);
+		Task task = a.get(index);
+
+		if (task == null || !top.compareAndSet(t, t + 1)) {
+			// Lost against the owner or another thief
+			return null;
+		}
+
+		// Only clear the slot if the owner has not reused it in the meantime
+		a.compareAndSet(index, task, null);
+		return task;
+	}
+
+	/**
+	 * Steals the oldest task from the top of the deque, if it holds a slot of the capacity of
+	 * the scheduler. May be called by any thread.
+	 *
+	 * @return The stolen task or null, if the deque was empty, the oldest task holds no slot
+	 * or the steal lost a race
+	 */
+	Task stealHoldingSlot() {
+		long t = top.get();
+		long b = bottom;
+
+		if (t >= b) {
+			return null;
+		}
+
+		AtomicReferenceArray<Task> a = array;
+		int index = (int) t & (a.length() - 1);
+		Task task = a.get(index);
+
+		if (task == null || !task.holdsSlot || !top.compareAndSet(t, t + 1)) {
+			return null;
+		}
+
+		a.compareAndSet(index, task, null);
+		return task;
+	}
+
+	/**
+	 * Checks wether the deque appears to be empty. The result is only a snapshot.
+	 *
+	 * @return {@code true} if the deque is empty, {@code false} otherwise
+	 */
+	boolean isEmpty() {
+		return top.get() >= bottom;
+	}
+
+	/**
+	 * Retrieves the approximate number of tasks in this deque.
+	 *
+	 * @return The approximate number of tasks queued
+	 */
+	int size() {
+		long size = bottom - top.get();
+		return size > 0 ? (int) size : 0;
+	}
+
+	// Doubles the size of the array, copying over all live elements
+	private AtomicReferenceArray<Task> grow(AtomicReferenceArray<Task> old, long t, long b) {
+		AtomicReferenceArray<Task> grown = new AtomicReferenceArray<>(old.length() << 1);
+
+		for (long i = t; i < b; i++) {
+			grown.set((int) i & (grown.length() - 1), old.get((int) i & (old.length() - 1)));
+		}
+
+		array = grown;
+		return grown;
+	}
+}
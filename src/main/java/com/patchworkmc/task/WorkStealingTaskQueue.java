@@ -0,0 +1,312 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link TaskQueue} giving every runner its own deque. Tasks scheduled from within a runner
+ * go to its own deque, tasks scheduled from outside go to a shared injection queue and idle
+ * runners steal from the others. Idle runners are parked and woken up one at a time.
+ */
+class WorkStealingTaskQueue extends TaskQueue {
+	private final WorkStealingDeque[] deques;
+	private final ConcurrentLinkedQueue<Task> injected;
+
+	// Parking state of the runners, 1 means the runner is (about to be) parked
+	// and waiting to be signalled
+	private final AtomicReferenceArray<Thread> threads;
+	private final AtomicIntegerArray idle;
+	private final AtomicInteger idleCount;
+
+	/**
+	 * Creates a new {@link WorkStealingTaskQueue}.
+	 *
+	 * @param scheduler The scheduler owning this queue
+	 * @param runners   The amount of runners which will take tasks from this queue
+	 */
+	WorkStealingTaskQueue(TaskScheduler scheduler, int runners) {
+		super(scheduler);
+		this.deques = new WorkStealingDeque[runners];
+
+		for (int i = 0; i < runners; i++) {
+			deques[i] = new WorkStealingDeque();
+		}
+
+		this.injected = new ConcurrentLinkedQueue<>();
+		this.threads = new AtomicReferenceArray<>(runners);
+		this.idle = new AtomicIntegerArray(runners);
+		this.idleCount = new AtomicInteger();
+	}
+
+	@Override
+	void register(int runnerIndex, Thread thread) {
+		threads.set(runnerIndex, thread);
+	}
+
+	@Override
+	void unregister(int runnerIndex) {
+		threads.set(runnerIndex, null);
+	}
+
+	@Override
+	void push(Task task, int runnerIndex) {
+		if (runnerIndex == NO_RUNNER) {
+			injected.add(task);
+		} else {
+			deques[runnerIndex].push(task);
+		}
+
+		signalOne();
+	}
+
+	@Override
+	void pushAll(List<Task> tasks, int runnerIndex) {
+		for (Task task : tasks) {
+			if (runnerIndex == NO_RUNNER) {
+				injected.add(task);
+			} else {
+				deques[runnerIndex].push(task);
+			}
+		}
+
+		// Wake one idle runner per task, the others steal from the ones woken up
+		for (int i = 0; i < tasks.size() && idleCount.get() > 0; i++) {
+			signalOne();
+		}
+	}
+
+	@Override
+	void requeue(Task task, int runnerIndex) {
+		// Unfinished tasks go to the back of the shared queue, pushing them onto the
+		// local deque would make the runner pick them up again right away and starve
+		// everything else it has queued
+		injected.add(task);
+		signalOne();
+	}
+
+	@Override
+	Task take(int runnerIndex, long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+
+		while (true) {
+			Task task = find(runnerIndex);
+
+			if (task != null) {
+				return task;
+			}
+
+			if (scheduler.mayTerminate()) {
+				// Nothing left to do and we are shutting down
+				return null;
+			}
+
+			// Announce that we are going idle before checking for work a last time, a
+			// concurrent push either sees us idle or we see its task
+			idle.set(runnerIndex, 1);
+			idleCount.incrementAndGet();
+
+			task = find(runnerIndex);
+
+			if (task != null) {
+				if (!cancelIdle(runnerIndex)) {
+					// Someone signalled us in the meantime, pass the signal on since
+					// we might have taken a different task than the one it was meant for
+					signalOne();
+				}
+
+				return task;
+			}
+
+			while (idle.get(runnerIndex) == 1) {
+				if (scheduler.mayTerminate()) {
+					cancelIdle(runnerIndex);
+					break;
+				}
+
+				if (timeoutNanos < 0) {
+					LockSupport.park(this);
+				} else {
+					long remaining = deadline - System.nanoTime();
+
+					if (remaining <= 0 && cancelIdle(runnerIndex)) {
+						// Nobody signalled us, so give up waiting
+						return null;
+					}
+
+					LockSupport.parkNanos(this, remaining);
+				}
+
+				if (Thread.interrupted()) {
+					cancelIdle(runnerIndex);
+					throw new InterruptedException();
+				}
+			}
+		}
+	}
+
+	@Override
+	boolean isEmpty() {
+		if (!injected.isEmpty()) {
+			return false;
+		}
+
+		for (WorkStealingDeque deque : deques) {
+			if (!deque.isEmpty()) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	@Override
+	Task pollOldestHoldingSlot() {
+		Task task = removeHoldingSlot(injected);
+
+		if (task != null) {
+			return task;
+		}
+
+		// Stealing takes from the old end of a deque, which is all we can look at
+		for (WorkStealingDeque deque : deques) {
+			if ((task = deque.stealHoldingSlot()) != null) {
+				return task;
+			}
+		}
+
+		return null;
+	}
+
+	@Override
+	List<Task> drain() {
+		List<Task> drained = new ArrayList<>();
+		Task task;
+
+		while ((task = injected.poll()) != null) {
+			drained.add(task);
+		}
+
+		// Other threads may only steal from the deques, steals can fail spuriously
+		// under contention so retry until the deque is empty
+		for (WorkStealingDeque deque : deques) {
+			while (!deque.isEmpty()) {
+				if ((task = deque.steal()) != null) {
+					drained.add(task);
+				}
+			}
+		}
+
+		return drained;
+	}
+
+	@Override
+	void wakeAll() {
+		for (int i = 0; i < deques.length; i++) {
+			cancelIdle(i);
+			Thread thread = threads.get(i);
+
+			if (thread != null) {
+				LockSupport.unpark(thread);
+			}
+		}
+	}
+
+	/**
+	 * Searches for a task in the local deque first, then in the injection queue and
+	 * finally tries to steal from the other runners.
+	 *
+	 * @param runnerIndex The index of the runner searching
+	 * @return The task found or null, if there was no work anywhere
+	 */
+	private Task find(int runnerIndex) {
+		Task task = deques[runnerIndex].pop();
+
+		if (task != null) {
+			return task;
+		}
+
+		task = injected.poll();
+
+		if (task != null) {
+			return task;
+		}
+
+		// Start at a random victim so thieves spread out
+		int start = ThreadLocalRandom.current().nextInt(deques.length);
+
+		for (int i = 0; i < deques.length; i++) {
+			int victim = (start + i) % deques.length;
+
+			if (victim != runnerIndex && (task = deques[victim].steal()) != null) {
+				return task;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Wakes up a single idle runner, if there is any.
+	 */
+	private void signalOne() {
+		if (idleCount.get() == 0) {
+			return;
+		}
+
+		int start = ThreadLocalRandom.current().nextInt(deques.length);
+
+		for (int i = 0; i < deques.length; i++) {
+			int index = (start + i) % deques.length;
+
+			if (cancelIdle(index)) {
+				Thread thread = threads.get(index);
+
+				if (thread != null) {
+					LockSupport.unpark(thread);
+				}
+
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Clears the idle flag of a runner.
+	 *
+	 * @param runnerIndex The index of the runner to clear the flag of
+	 * @return {@code true} if the flag was set and this call cleared it, {@code false} otherwise
+	 */
+	private boolean cancelIdle(int runnerIndex) {
+		if (idle.get(runnerIndex) == 1 && idle.compareAndSet(runnerIndex, 1, 0)) {
+			idleCount.decrementAndGet();
+			return true;
+		}
+
+		return false;
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non negative values using a fixed amount of memory. Values are counted in
+ * exponentially growing buckets, each power of two is split into {@link Histogram#SUB_BUCKETS}
+ * linear buckets, so percentiles are exact to within 25%. Recording is lock free.
+ */
+public class Histogram {
+	private static final int SUB_BITS = 2;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// Values below SUB_BUCKETS get a bucket each, every higher power of two gets SUB_BUCKETS
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts;
+	private final LongAdder sum;
+	private final AtomicLong max;
+
+	/**
+	 * Creates a new, empty {@link Histogram}.
+	 */
+	public Histogram() {
+		this.counts = new AtomicLongArray(BUCKETS);
+		this.sum = new LongAdder();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Records a value.
+	 *
+	 * @param value The value to record, negative values are recorded as 0
+	 */
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+
+		counts.incrementAndGet(indexOf(value));
+		sum.add(value);
+
+		long current;
+
+		// Only contend on the maximum if it actually changes
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Takes a snapshot of the histogram. Values recorded concurrently may or may not be
+	 * part of it.
+	 *
+	 * @return A snapshot of the current state
+	 */
+	public Snapshot snapshot() {
+		long[] copy = new long[BUCKETS];
+
+		for (int i = 0; i < BUCKETS; i++) {
+			copy[i] = counts.get(i);
+		}
+
+		return new Snapshot(copy, sum.sum(), max.get());
+	}
+
+	/**
+	 * Calculates the bucket a value is counted in.
+	 *
+	 * @param value The non negative value
+	 * @return The index of the bucket
+	 */
+	private static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Calculates the highest value counted in a bucket.
+	 *
+	 * @param index The index of the bucket
+	 * @return The highest value of the bucket
+	 */
+	private static long upperBoundOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+
+		int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+		long width = 1L << (exponent - SUB_BITS);
+		long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BITS);
+
+		return lower + width - 1;
+	}
+
+	/**
+	 * Immutable state of a {@link Histogram} at some point in time.
+	 */
+	public static final class Snapshot {
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		private Snapshot(long[] counts, long sum, long max) {
+			long count = 0;
+
+			for (long bucket : counts) {
+				count += bucket;
+			}
+
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * Retrieves the amount of recorded values.
+		 *
+		 * @return The amount of recorded values
+		 */
+		public long count() {
+			return count;
+		}
+
+		/**
+		 * Retrieves the arithmetic mean of the recorded values.
+		 *
+		 * @return The mean or 0, if no value has been recorded
+		 */
+		public double mean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		/**
+		 * Retrieves the highest recorded value.
+		 *
+		 * @return The highest value or 0, if no value has been recorded
+		 */
+		public long max() {
+			return max;
+		}
+
+		/**
+		 * Estimates the value below which the specified share of values lies.
+		 *
+		 * @param percentile The percentile, between 0 and 100
+		 * @return The upper bound of the bucket the percentile falls into or 0, if no value
+		 * has been recorded
+		 */
+		public long percentile(double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+
+			long rank = (long) Math.ceil(Math.max(0, Math.min(100, percentile)) / 100 * count);
+			long seen = 0;
+
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+
+				if (seen >= rank && counts[i] > 0) {
+					return Math.min(upperBoundOf(i), max);
+				}
+			}
+
+			return max;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("count=%d mean=%.1f p50=%d p99=%d max=%d",
+					count, mean(), percentile(50), percentile(99), max);
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task.metrics;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of a {@link com.patchworkmc.task.TaskScheduler}. All counters are striped, so runners
+ * recording concurrently don't contend on a single memory location, and snapshots can be
+ * taken at any time without stopping the runners.
+ */
+public class SchedulerMetrics {
+	/**
+	 * Maximal amount of distinct task names tracked separately. Tasks with names beyond
+	 * that are accounted for under {@link SchedulerMetrics#OTHER_TASKS}, which keeps the
+	 * memory bounded if names are generated.
+	 */
+	public static final int MAX_TASK_NAMES = 1024;
+
+	/**
+	 * Name under which tasks are accounted for once {@link SchedulerMetrics#MAX_TASK_NAMES}
+	 * has been reached.
+	 */
+	public static final String OTHER_TASKS = "<other>";
+
+	private final LongAdder queued;
+	private final LongAdder scheduled;
+	private final LongAdder steps;
+	private final LongAdder completed;
+	private final LongAdder failed;
+	private final ConcurrentHashMap<String, TaskMetrics> tasks;
+
+	/**
+	 * Creates a new {@link SchedulerMetrics}.
+	 */
+	public SchedulerMetrics() {
+		this.queued = new LongAdder();
+		this.scheduled = new LongAdder();
+		this.steps = new LongAdder();
+		this.completed = new LongAdder();
+		this.failed = new LongAdder();
+		this.tasks = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Records a newly scheduled task.
+	 */
+	public void scheduled() {
+		scheduled.increment();
+	}
+
+	/**
+	 * Records multiple newly scheduled tasks at once.
+	 *
+	 * @param count The amount of scheduled tasks
+	 */
+	public void scheduled(int count) {
+		scheduled.add(count);
+	}
+
+	/**
+	 * Records a task being added to the queue, either newly scheduled, requeued or resumed.
+	 */
+	public void enqueued() {
+		queued.increment();
+	}
+
+	/**
+	 * Records a task being taken from the queue.
+	 */
+	public void dequeued() {
+		queued.decrement();
+	}
+
+	/**
+	 * Records a single step of a task.
+	 *
+	 * @param name      The name of the task
+	 * @param waitNanos The time the task spent in the queue before the step in nanoseconds
+	 * @param runNanos  The time the step took in nanoseconds
+	 */
+	public void stepped(String name, long waitNanos, long runNanos) {
+		steps.increment();
+		task(name).stepped(waitNanos, runNanos);
+	}
+
+	/**
+	 * Records a task which finished.
+	 *
+	 * @param name       The name of the task
+	 * @param stepCount  The amount of steps the task took
+	 * @param taskFailed Whether the task failed
+	 */
+	public void finished(String name, int stepCount, boolean taskFailed) {
+		if (taskFailed) {
+			failed.increment();
+		} else {
+			completed.increment();
+		}
+
+		task(name).finished(stepCount, taskFailed);
+	}
+
+	/**
+	 * Retrieves the metrics of the tasks with the specified name, creating them if required.
+	 *
+	 * @param name The name of the tasks
+	 * @return The metrics of the tasks
+	 */
+	private TaskMetrics task(String name) {
+		// Plain lookup first, computeIfAbsent locks even if the mapping exists
+		TaskMetrics metrics = tasks.get(name);
+
+		if (metrics != null) {
+			return metrics;
+		}
+
+		if (tasks.size() >= MAX_TASK_NAMES) {
+			name = OTHER_TASKS;
+		}
+
+		return tasks.computeIfAbsent(name, TaskMetrics::new);
+	}
+
+	/**
+	 * Takes a snapshot of the metrics, without blocking any recording thread. Values recorded
+	 * concurrently may or may not be part of it.
+	 *
+	 * @return A snapshot of the current state
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Immutable state of a {@link SchedulerMetrics} at some point in time.
+	 */
+	public static final class Snapshot {
+		private final long queueDepth;
+		private final long scheduled;
+		private final long steps;
+		private final long completed;
+		private final long failed;
+		private final Map<String, TaskMetrics.Snapshot> tasks;
+
+		private Snapshot(SchedulerMetrics metrics) {
+			this.queueDepth = Math.max(0, metrics.queued.sum());
+			this.scheduled = metrics.scheduled.sum();
+			this.steps = metrics.steps.sum();
+			this.completed = metrics.completed.sum();
+			this.failed = metrics.failed.sum();
+
+			Map<String, TaskMetrics.Snapshot> tasks = new HashMap<>();
+			metrics.tasks.forEach((name, task) -> tasks.put(name, task.snapshot()));
+			this.tasks = Collections.unmodifiableMap(tasks);
+		}
+
+		/**
+		 * Retrieves the amount of tasks waiting in the queue.
+		 *
+		 * @return The queue depth
+		 */
+		public long queueDepth() {
+			return queueDepth;
+		}
+
+		/**
+		 * Retrieves the amount of tasks scheduled.
+		 *
+		 * @return The amount of scheduled tasks
+		 */
+		public long scheduled() {
+			return scheduled;
+		}
+
+		/**
+		 * Retrieves the amount of steps run.
+		 *
+		 * @return The amount of steps
+		 */
+		public long steps() {
+			return steps;
+		}
+
+		/**
+		 * Retrieves the amount of tasks which completed successfully.
+		 *
+		 * @return The amount of completed tasks
+		 */
+		public long completed() {
+			return completed;
+		}
+
+		/**
+		 * Retrieves the amount of tasks which failed.
+		 *
+		 * @return The amount of failed tasks
+		 */
+		public long failed() {
+			return failed;
+		}
+
+		/**
+		 * Retrieves the metrics per task name.
+		 *
+		 * @return An immutable map from task names to their metrics
+		 */
+		public Map<String, TaskMetrics.Snapshot> tasks() {
+			return tasks;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("queueDepth=%d scheduled=%d steps=%d completed=%d failed=%d",
+					queueDepth, scheduled, steps, completed, failed);
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of all tasks sharing a name.
+ */
+public class TaskMetrics {
+	private final String name;
+	private final LongAdder steps;
+	private final LongAdder completed;
+	private final LongAdder failed;
+	private final Histogram queueWait;
+	private final Histogram stepTime;
+	private final Histogram stepsPerTask;
+
+	/**
+	 * Creates a new {@link TaskMetrics}.
+	 *
+	 * @param name The name of the tasks
+	 */
+	public TaskMetrics(String name) {
+		this.name = name;
+		this.steps = new LongAdder();
+		this.completed = new LongAdder();
+		this.failed = new LongAdder();
+		this.queueWait = new Histogram();
+		this.stepTime = new Histogram();
+		this.stepsPerTask = new Histogram();
+	}
+
+	/**
+	 * Records a single step.
+	 *
+	 * @param waitNanos The time the task spent in the queue before the step in nanoseconds
+	 * @param runNanos  The time the step took in nanoseconds
+	 */
+	public void stepped(long waitNanos, long runNanos) {
+		steps.increment();
+		queueWait.record(waitNanos);
+		stepTime.record(runNanos);
+	}
+
+	/**
+	 * Records a task which finished.
+	 *
+	 * @param steps  The amount of steps the task took
+	 * @param failed Whether the task failed
+	 */
+	public void finished(int steps, boolean failed) {
+		if (failed) {
+			this.failed.increment();
+		} else {
+			completed.increment();
+		}
+
+		stepsPerTask.record(steps);
+	}
+
+	/**
+	 * Takes a snapshot of the metrics, without blocking any recording thread.
+	 *
+	 * @return A snapshot of the current state
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Immutable state of a {@link TaskMetrics} at some point in time.
+	 */
+	public static final class Snapshot {
+		private final String name;
+		private final long steps;
+		private final long completed;
+		private final long failed;
+		private final Histogram.Snapshot queueWait;
+		private final Histogram.Snapshot stepTime;
+		private final Histogram.Snapshot stepsPerTask;
+
+		private Snapshot(TaskMetrics metrics) {
+			this.name = metrics.name;
+			this.steps = metrics.steps.sum();
+			this.completed = metrics.completed.sum();
+			this.failed = metrics.failed.sum();
+			this.queueWait = metrics.queueWait.snapshot();
+			this.stepTime = metrics.stepTime.snapshot();
+			this.stepsPerTask = metrics.stepsPerTask.snapshot();
+		}
+
+		/**
+		 * Retrieves the name of the tasks.
+		 *
+		 * @return The name of the tasks
+		 */
+		public String name() {
+			return name;
+		}
+
+		/**
+		 * Retrieves the amount of steps run.
+		 *
+		 * @return The amount of steps
+		 */
+		public long steps() {
+			return steps;
+		}
+
+		/**
+		 * Retrieves the amount of tasks which completed successfully.
+		 *
+		 * @return The amount of completed tasks
+		 */
+		public long completed() {
+			return completed;
+		}
+
+		/**
+		 * Retrieves the amount of tasks which failed.
+		 *
+		 * @return The amount of failed tasks
+		 */
+		public long failed() {
+			return failed;
+		}
+
+		/**
+		 * Retrieves the time tasks spent in the queue before each step, in nanoseconds.
+		 *
+		 * @return The queue wait histogram
+		 */
+		public Histogram.Snapshot queueWait() {
+			return queueWait;
+		}
+
+		/**
+		 * Retrieves the time each step took, in nanoseconds.
+		 *
+		 * @return The step time histogram
+		 */
+		public Histogram.Snapshot stepTime() {
+			return stepTime;
+		}
+
+		/**
+		 * Retrieves the amount of steps finished tasks took.
+		 *
+		 * @return The steps per task histogram
+		 */
+		public Histogram.Snapshot stepsPerTask() {
+			return stepsPerTask;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s: steps=%d completed=%d failed=%d wait[%s] run[%s]",
+					name, steps, completed, failed, queueWait, stepTime);
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records the steps, queue waits and continuations of a {@link com.patchworkmc.task.TaskScheduler}
+ * into a preallocated ring buffer, which can be written out as Chrome trace event JSON and viewed
+ * in chrome://tracing or Perfetto. Recording an event claims a slot with a single atomic increment
+ * and allocates nothing; once the buffer is full, the oldest events are overwritten.
+ *
+ * <p>Every slot is guarded by a sequence number, so the trace can be written while the scheduler
+ * is running. Events which are overwritten while being written out are skipped.</p>
+ */
+public class TraceRecorder {
+	private static final int STEP = 0;
+	private static final int CONTINUATION = 1;
+	private static final int CONTINUATION_INLINE = 2;
+
+	// Marks a slot which is being written
+	private static final long WRITING = -1;
+
+	private final int mask;
+	private final long origin;
+	private final AtomicLong cursor;
+
+	// One entry per slot, written with lazySet only
+	private final AtomicLongArray sequences;
+	private final AtomicLongArray types;
+	private final AtomicLongArray queuedAt;
+	private final AtomicLongArray startedAt;
+	private final AtomicLongArray endedAt;
+	private final AtomicReferenceArray<String> names;
+	private final AtomicReferenceArray<Thread> threads;
+
+	/**
+	 * Creates a new {@link TraceRecorder}.
+	 *
+	 * @param capacity The amount of events to keep, rounded up to the next power of two
+	 */
+	public TraceRecorder(int capacity) {
+		if (capacity < 1 || capacity > 1 << 30) {
+			throw new IllegalArgumentException("Capacity of trace recorder has to be between 1 and 2^30");
+		}
+
+		int size = Integer.highestOneBit(capacity);
+
+		if (size < capacity) {
+			size <<= 1;
+		}
+
+		this.mask = size - 1;
+		this.origin = System.nanoTime();
+		this.cursor = new AtomicLong();
+		this.sequences = new AtomicLongArray(size);
+		this.types = new AtomicLongArray(size);
+		this.queuedAt = new AtomicLongArray(size);
+		this.startedAt = new AtomicLongArray(size);
+		this.endedAt = new AtomicLongArray(size);
+		this.names = new AtomicReferenceArray<>(size);
+		this.threads = new AtomicReferenceArray<>(size);
+
+		for (int i = 0; i < size; i++) {
+			// No slot has been written yet
+			sequences.lazySet(i, WRITING);
+		}
+	}
+
+	/**
+	 * Records a single step of a task on the current thread.
+	 *
+	 * @param name     The name of the task
+	 * @param queuedAt The time the task has been queued at, in {@link System#nanoTime()} units
+	 * @param start    The time the step started at
+	 * @param end      The time the step ended at
+	 */
+	public void step(String name, long queuedAt, long start, long end) {
+		record(STEP, name, queuedAt, start, end);
+	}
+
+	/**
+	 * Records a continuation of a tracker being run or scheduled on the current thread.
+	 *
+	 * @param name   The name of the task running the continuation
+	 * @param inline Whether the continuation runs inline instead of being scheduled
+	 */
+	public void continuation(String name, boolean inline) {
+		long now = System.nanoTime();
+		record(inline ? CONTINUATION_INLINE : CONTINUATION, name, now, now, now);
+	}
+
+	private void record(int type, String name, long queued, long start, long end) {
+		long sequence = cursor.getAndIncrement();
+		int slot = (int) sequence & mask;
+
+		// Ordered stores keep their order, so readers never see a
+		// completed sequence number with fields from another event
+		sequences.lazySet(slot, WRITING);
+		types.lazySet(slot, type);
+		queuedAt.lazySet(slot, queued);
+		startedAt.lazySet(slot, start);
+		endedAt.lazySet(slot, end);
+		names.lazySet(slot, name);
+		threads.lazySet(slot, Thread.currentThread());
+		sequences.lazySet(slot, sequence);
+	}
+
+	/**
+	 * Retrieves the amount of events this recorder keeps.
+	 *
+	 * @return The capacity of the ring buffer
+	 */
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Retrieves the amount of events recorded so far, including the ones which have been
+	 * overwritten already.
+	 *
+	 * @return The amount of recorded events
+	 */
+	public long getRecordedCount() {
+		return cursor.get();
+	}
+
+	/**
+	 * Writes the events currently held by the ring buffer as Chrome trace event JSON. Steps
+	 * appear as complete events on the thread which ran them, queue waits as async events
+	 * and continuations as instant events.
+	 *
+	 * @param out The writer to write the trace to
+	 * @throws IOException If writing fails
+	 */
+	public void writeChromeTrace(Writer out) throws IOException {
+		long end = cursor.get();
+		long begin = Math.max(0, end - (mask + 1));
+		Map<Long, String> threadNames = new HashMap<>();
+		boolean first = true;
+
+		out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+
+		for (long sequence = begin; sequence < end; sequence++) {
+			int slot = (int) sequence & mask;
+
+			if (sequences.get(slot) != sequence) {
+				// Not written yet or overwritten already
+				continue;
+			}
+
+			int type = (int) types.get(slot);
+			long queued = queuedAt.get(slot);
+			long start = startedAt.get(slot);
+			long stop = endedAt.get(slot);
+			String name = names.get(slot);
+			Thread thread = threads.get(slot);
+
+			if (sequences.get(slot) != sequence) {
+				// Overwritten while reading
+				continue;
+			}
+
+			long tid = thread.getId();
+			threadNames.putIfAbsent(tid, thread.getName());
+
+			if (!first) {
+				out.write(',');
+			}
+
+			first = false;
+
+			switch (type) {
+			case STEP:
+				writeEvent(out, name, "step", "X", tid, start);
+				out.write(",\"dur\":");
+				writeMicros(out, stop - start);
+				out.write('}');
+
+				if (queued != 0 && queued < start) {
+					// The wait is not bound to a thread, so it gets its own async track
+					out.write(',');
+					writeEvent(out, name, "queue", "b", tid, queued);
+					out.write(",\"id\":" + sequence + "}");
+					out.write(',');
+					writeEvent(out, name, "queue", "e", tid, start);
+					out.write(",\"id\":" + sequence + "}");
+				}
+
+				break;
+
+			case CONTINUATION:
+			case CONTINUATION_INLINE:
+				writeEvent(out, name, "continuation", "i", tid, start);
+				out.write(",\"s\":\"t\",\"args\":{\"inline\":" + (type == CONTINUATION_INLINE) + "}}");
+				break;
+
+			default:
+				throw new AssertionError("UNREACHABLE");
+			}
+		}
+
+		for (Map.Entry<Long, String> entry : threadNames.entrySet()) {
+			if (!first) {
+				out.write(',');
+			}
+
+			first = false;
+			out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + entry.getKey() + ",\"args\":{\"name\":");
+			writeString(out, entry.getValue());
+			out.write("}}");
+		}
+
+		out.write("]}");
+		out.flush();
+	}
+
+	// Writes the common fields of an event, leaving the object open
+	private void writeEvent(Writer out, String name, String category, String phase, long tid, long time) throws IOException {
+		out.write("{\"name\":");
+		writeString(out, name);
+		out.write(",\"cat\":\"" + category + "\",\"ph\":\"" + phase + "\",\"pid\":1,\"tid\":" + tid + ",\"ts\":");
+		writeMicros(out, time - origin);
+	}
+
+	// Writes nanoseconds as microseconds with three decimals
+	private static void writeMicros(Writer out, long nanos) throws IOException {
+		if (nanos < 0) {
+			out.write('-');
+			nanos = -nanos;
+		}
+
+		long fraction = nanos % 1000;
+		out.write(Long.toString(nanos / 1000));
+		out.write('.');
+		out.write((char) ('0' + fraction / 100));
+		out.write((char) ('0' + fraction / 10 % 10));
+		out.write((char) ('0' + fraction % 10));
+	}
+
+	// Writes a JSON string literal
+	private static void writeString(Writer out, String value) throws IOException {
+		out.write('"');
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+
+			switch (c) {
+			case '"':
+				out.write("\\\"");
+				break;
+
+			case '\\':
+				out.write("\\\\");
+				break;
+
+			case '\n':
+				out.write("\\n");
+				break;
+
+			case '\r':
+				out.write("\\r");
+				break;
+
+			case '\t':
+				out.write("\\t");
+				break;
+
+			default:
+				if (c < 0x20) {
+					out.write(String.format("\\u%04x", (int) c));
+				} else {
+					out.write(c);
+				}
+			}
+		}
+
+		out.write('"');
+	}
+}
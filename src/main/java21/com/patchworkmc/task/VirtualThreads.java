@@ -0,0 +1,49 @@
+/*
+ * Patchwork Project
+ * Copyright (C) 2019 PatchworkMC and contributors
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 3 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ */
+
+package com.patchworkmc.task;
+
+/**
+ * Access to virtual threads, which are only available on Java 21 and newer. This is the
+ * Java 21 variant, which is picked from the multi-release jar on JDKs supporting them.
+ */
+class VirtualThreads {
+	private VirtualThreads() {
+	}
+
+	/**
+	 * Checks wether virtual threads can be started on the running JDK.
+	 *
+	 * @return True if virtual threads are supported, false otherwise
+	 */
+	static boolean isSupported() {
+		return true;
+	}
+
+	/**
+	 * Starts a new virtual thread.
+	 *
+	 * @param name     The name of the thread
+	 * @param runnable The operation to run on the thread
+	 * @return The started thread
+	 */
+	static Thread start(String name, Runnable runnable) {
+		return Thread.ofVirtual().name(name).start(runnable);
+	}
+}